@@ -0,0 +1,152 @@
+package com.omar.vendingmachine.cache;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * A cache bounded in size where each entry expires after a time to live. Reads never take a lock. Once the cache is full, the
+ * oldest entries are evicted first. It counts the hits, the misses and the evictions (including the expired entries).
+ * @param <K>
+ * @param <V>
+ */
+public class BoundedCache<K, V> {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final Queue<Insertion<K>> insertions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize the maximum number of entries, more than 0.
+     * @param ttlMillis the time to live of an entry.
+     * @throws IllegalArgumentException in case the maximum size is not more than 0.
+     */
+    public BoundedCache(int maxSize, long ttlMillis) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException(String.format("The maximum size of the cache should be more than 0, not %d", maxSize));
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns the value cached for the key.
+     * @param key
+     * @return the value, or null in case the key is not cached or its entry expired.
+     */
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt < System.currentTimeMillis()) {
+            if (entries.remove(key, entry)) {
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Caches the value for the key, replacing any value cached before.
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        long insertion = sequence.incrementAndGet();
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis, insertion));
+        insertions.add(new Insertion<>(key, insertion));
+        while (entries.size() > maxSize) {
+            Insertion<K> oldest = insertions.poll();
+            if (oldest == null) {
+                break;
+            }
+            Entry<V> entry = entries.get(oldest.key);
+            // Only the entry of that insertion is evicted, not a newer value put for the same key.
+            if (entry != null && entry.insertion == oldest.insertion && entries.remove(oldest.key, entry)) {
+                evictions.increment();
+            }
+        }
+        // Keeps the insertion queue from growing with the updates of the same keys, checked once every maxSize insertions.
+        if (insertion % maxSize == 0) {
+            insertions.removeIf(old -> {
+                Entry<V> entry = entries.get(old.key);
+                return entry == null || entry.insertion != old.insertion;
+            });
+        }
+    }
+
+    /**
+     * Removes the key from the cache.
+     * @param key
+     */
+    public void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    /**
+     * Removes all the entries matching the condition from the cache.
+     * @param condition
+     */
+    public void invalidateIf(BiPredicate<K, V> condition) {
+        entries.entrySet().removeIf(entry -> condition.test(entry.getKey(), entry.getValue().value));
+    }
+
+    /**
+     * Removes all the entries from the cache.
+     */
+    public void clear() {
+        entries.clear();
+        insertions.clear();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expiresAt;
+        private final long insertion;
+
+        Entry(V value, long expiresAt, long insertion) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.insertion = insertion;
+        }
+    }
+
+    private static class Insertion<K> {
+        private final K key;
+        private final long insertion;
+
+        Insertion(K key, long insertion) {
+            this.key = key;
+            this.insertion = insertion;
+        }
+    }
+}
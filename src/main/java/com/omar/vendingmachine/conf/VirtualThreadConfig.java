@@ -0,0 +1,48 @@
+package com.omar.vendingmachine.conf;
+
+import org.apache.coyote.ProtocolHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the servlet requests on virtual threads instead of the Tomcat thread pool, enabled with the virtual-threads profile.
+ * The blocking calls to the database made while handling a request then hold a virtual thread, which is cheap, instead of one
+ * of the pooled platform threads. Virtual threads need Java 21 or later; on older runtimes the Tomcat pool is kept.
+ */
+@Configuration
+@Profile("virtual-threads")
+public class VirtualThreadConfig {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    @Bean
+    public TomcatProtocolHandlerCustomizer<ProtocolHandler> virtualThreadProtocolHandlerCustomizer() {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if (executor == null) {
+            LOGGER.warn("Virtual threads are not supported by Java {}, requests keep running on the Tomcat thread pool",
+                    System.getProperty("java.version"));
+            return protocolHandler -> {
+            };
+        }
+        return protocolHandler -> protocolHandler.setExecutor(executor);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task. It is looked up at runtime, so the application
+     * still builds and runs on Java versions without virtual threads.
+     * @return the executor, or null in case the running Java version has no virtual threads.
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
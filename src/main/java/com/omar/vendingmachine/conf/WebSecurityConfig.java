@@ -1,20 +1,29 @@
 package com.omar.vendingmachine.conf;
 
 import com.omar.vendingmachine.model.user.ERole;
+import com.omar.vendingmachine.security.CachingAuthenticationProvider;
+import com.omar.vendingmachine.security.JwtAuthenticationFilter;
+import com.omar.vendingmachine.security.JwtTokenProvider;
+import com.omar.vendingmachine.security.MongoSessionRegistry;
+import com.omar.vendingmachine.security.VerifiedCredentialCache;
 import com.omar.vendingmachine.service.CustomUserDetailService;
+import com.omar.vendingmachine.service.TokenRevocationService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.http.HttpMethod;
 import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.configuration.EnableWebSecurity;
 import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
 import org.springframework.security.core.session.SessionRegistry;
-import org.springframework.security.core.session.SessionRegistryImpl;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.security.web.authentication.www.BasicAuthenticationFilter;
+import org.springframework.security.web.session.HttpSessionEventPublisher;
 
 @Configuration
 @EnableWebSecurity
@@ -22,11 +31,22 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 
     @Autowired
     CustomUserDetailService customUserDetailService;
-
+    @Autowired
+    JwtTokenProvider jwtTokenProvider;
+    @Autowired
+    TokenRevocationService tokenRevocationService;
+    @Autowired
+    VerifiedCredentialCache verifiedCredentialCache;
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
 
     @Override
     public void configure(AuthenticationManagerBuilder authenticationManagerBuilder) throws Exception {
-        authenticationManagerBuilder.userDetailsService(customUserDetailService).passwordEncoder(passwordEncoder());
+        DaoAuthenticationProvider daoAuthenticationProvider = new DaoAuthenticationProvider();
+        daoAuthenticationProvider.setUserDetailsService(customUserDetailService);
+        daoAuthenticationProvider.setPasswordEncoder(passwordEncoder());
+        authenticationManagerBuilder.authenticationProvider(
+                new CachingAuthenticationProvider(daoAuthenticationProvider, verifiedCredentialCache));
     }
 
     @Bean
@@ -42,21 +62,32 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
 
     @Bean
     public SessionRegistry sessionRegistry() {
-        return new SessionRegistryImpl();
+        return new MongoSessionRegistry(reactiveMongoTemplate);
+    }
+
+    @Bean
+    public HttpSessionEventPublisher httpSessionEventPublisher() {
+        return new HttpSessionEventPublisher();
     }
 
     @Override
     protected void configure(HttpSecurity http) throws Exception {
         http.httpBasic().and()
+                .addFilterBefore(new JwtAuthenticationFilter(jwtTokenProvider, tokenRevocationService), BasicAuthenticationFilter.class)
                 .antMatcher("/**").authorizeRequests().antMatchers("/user/signup").permitAll()
                 .antMatchers(HttpMethod.POST, "/user/login").authenticated()
                 .antMatchers(HttpMethod.GET, "/user/getAllSessions").authenticated()
                 .antMatchers(HttpMethod.PUT, "/user/deposit/**").hasRole(ERole.BUYER.name())
+                .antMatchers("/user/ws").hasRole(ERole.BUYER.name())
+                .antMatchers(HttpMethod.GET, "/user/purchases").hasRole(ERole.BUYER.name())
+                .antMatchers(HttpMethod.GET, "/product/sales").hasRole(ERole.SELLER.name())
                 .antMatchers(HttpMethod.GET, "/product/**").permitAll()
                 .antMatchers(HttpMethod.POST, "/product").hasRole(ERole.SELLER.name())
+                .antMatchers(HttpMethod.POST, "/product/batch").hasRole(ERole.SELLER.name())
                 .antMatchers(HttpMethod.PUT, "/product/**").hasRole(ERole.SELLER.name())
                 .antMatchers(HttpMethod.DELETE, "/product/**").hasRole(ERole.SELLER.name())
                 .antMatchers(HttpMethod.POST, "/product/buy/**").hasRole(ERole.BUYER.name())
-                .and().csrf().disable().logout().logoutUrl("/user/logout").and().sessionManagement().maximumSessions(10);
+                .antMatchers("/machine/**").hasRole(ERole.SELLER.name())
+                .and().csrf().disable().logout().logoutUrl("/user/logout").and().sessionManagement().maximumSessions(10).sessionRegistry(sessionRegistry());
     }
 }
@@ -0,0 +1,5 @@
+package com.omar.vendingmachine.constants;
+
+public class MachineConstants {
+    public static final String COINS = "coins";
+}
@@ -0,0 +1,11 @@
+package com.omar.vendingmachine.constants;
+
+public class OutboxConstants {
+    public static final String ID = "id";
+    public static final String LAST_ID = "lastId";
+    public static final String UPDATED_AT = "updatedAt";
+    public static final String OWNER = "owner";
+    public static final String LEASE_UNTIL = "leaseUntil";
+    public static final String SOURCE_ID = "sourceId";
+    public static final String PENDING_EVENTS = "pendingEvents";
+}
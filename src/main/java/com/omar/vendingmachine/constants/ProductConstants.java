@@ -6,5 +6,11 @@ public class ProductConstants {
     public static final String PRODUCT_NAME = "productName";
     public static final String COST = "cost";
     public static final String AMOUNT_AVAILLABLE = "amountAvaillable";
+    public static final String SELLER_USER_NAME = "sellerUserName";
     public static final String ID = "id";
+    public static final String DELETED = "deleted";
+    public static final String VERSION = "version";
+    public static final String ALLOTMENTS = "allotments";
+    public static final String PRODUCTS = "products";
+    public static final String NEXT = "next";
 }
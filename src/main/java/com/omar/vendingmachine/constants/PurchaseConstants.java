@@ -0,0 +1,9 @@
+package com.omar.vendingmachine.constants;
+
+public class PurchaseConstants {
+    public static final String PURCHASES = "purchases";
+    public static final String ID = "id";
+    public static final String USERNAME = "username";
+    public static final String TIMESTAMP = "timestamp";
+    public static final String NEXT = "next";
+}
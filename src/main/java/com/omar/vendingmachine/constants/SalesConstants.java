@@ -0,0 +1,12 @@
+package com.omar.vendingmachine.constants;
+
+public class SalesConstants {
+    public static final String PRODUCT_ID = "productId";
+    public static final String SELLER_USER_NAME = "sellerUserName";
+    public static final String PERIOD = "period";
+    public static final String START = "start";
+    public static final String UNITS = "units";
+    public static final String REVENUE = "revenue";
+    public static final String HOUR = "hour";
+    public static final String DAY = "day";
+}
@@ -11,5 +11,18 @@ public class UserContants {
     public static final String BUYER = "buyer";
     public static final String SELLER = "seller";
     public static final String NAME = "name";
+    public static final String DEPOSIT = "deposit";
+    public static final String TOKEN = "token";
+    public static final String TOKEN_TYPE = "tokenType";
+    public static final String EXPIRES_IN = "expiresIn";
+    public static final String MESSAGE = "message";
+    public static final String BEARER = "Bearer";
+    public static final String ROLES = "roles";
+    public static final String ROLES_CLAIM = "roles";
+    public static final String ISSUED_AT_MS_CLAIM = "iatMs";
+    public static final String PRINCIPAL = "principal";
+    public static final String LAST_REQUEST = "lastRequest";
+    public static final String EXPIRED = "expired";
+    public static final String SESSION_ID = "sessionId";
     public static final Set<Integer> DEPOSIT_AMOUNTS = new HashSet<>(Arrays.asList(5, 10, 20, 50, 100));
 }
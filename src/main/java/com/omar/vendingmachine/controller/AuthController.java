@@ -3,8 +3,10 @@ package com.omar.vendingmachine.controller;
 import com.omar.vendingmachine.constants.UserContants;
 import com.omar.vendingmachine.model.user.ERole;
 import com.omar.vendingmachine.model.user.Role;
+import com.omar.vendingmachine.security.JwtTokenProvider;
 import com.omar.vendingmachine.service.CustomUserDetailService;
 import com.omar.vendingmachine.service.RoleService;
+import com.omar.vendingmachine.service.TokenRevocationService;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import org.apache.commons.lang3.StringUtils;
@@ -21,6 +23,7 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -37,6 +40,10 @@ public class AuthController {
     PasswordEncoder passwordEncoder;
     @Autowired
     SessionRegistry sessionRegistry;
+    @Autowired
+    JwtTokenProvider jwtTokenProvider;
+    @Autowired
+    TokenRevocationService tokenRevocationService;
 
     @ApiOperation(value = "Register a new user, accepts the username, password and role as input", tags = "signup")
     @PostMapping("/user/signup")
@@ -75,16 +82,22 @@ public class AuthController {
         for (SessionInformation sessionInformation : sessions) {
             sessionInformation.expireNow();
         }
+        tokenRevocationService.revokeAll(authentication.getName());
         return ResponseEntity.ok().body("Successfully logged out of all sessions");
     }
 
+    @ApiOperation(value = "Logs the user in and issues a token to authorize the next requests with the Bearer scheme", tags = "login")
     @PostMapping("user/login")
     public ResponseEntity<?> login() {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put(UserContants.TOKEN, jwtTokenProvider.createToken(authentication));
+        result.put(UserContants.TOKEN_TYPE, UserContants.BEARER);
+        result.put(UserContants.EXPIRES_IN, jwtTokenProvider.getExpiration() / 1000);
         List<SessionInformation> sessions = sessionRegistry.getAllSessions(authentication.getPrincipal(), false);
         if (sessions.size() > 1) {
-            return ResponseEntity.ok().body(String.format("There is already an active session using your account"));
+            result.put(UserContants.MESSAGE, "There is already an active session using your account");
         }
-        return ResponseEntity.ok().body("success");
+        return ResponseEntity.ok().body(result);
     }
 }
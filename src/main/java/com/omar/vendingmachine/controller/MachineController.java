@@ -0,0 +1,32 @@
+package com.omar.vendingmachine.controller;
+
+import com.omar.vendingmachine.service.CoinInventoryService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+public class MachineController {
+    @Autowired
+    CoinInventoryService coinInventoryService;
+
+    @GetMapping("/machine/coins")
+    public ResponseEntity<?> getCoins() {
+        return ResponseEntity.ok().body(coinInventoryService.getCoins());
+    }
+
+    @PutMapping("/machine/coins")
+    public ResponseEntity<?> fillCoins(@RequestBody Map<Integer, Integer> coins) {
+        try {
+            coinInventoryService.fill(coins);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+        return ResponseEntity.ok().body(coinInventoryService.getCoins());
+    }
+}
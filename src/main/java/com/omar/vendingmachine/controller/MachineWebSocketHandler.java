@@ -0,0 +1,196 @@
+package com.omar.vendingmachine.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.event.TokensRevokedEvent;
+import com.omar.vendingmachine.exceptions.InvalidDepositAmountException;
+import com.omar.vendingmachine.exceptions.InvalidPurchaseException;
+import com.omar.vendingmachine.exceptions.ProductDoesNotExistException;
+import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.pojo.MachineCommand;
+import com.omar.vendingmachine.service.CustomUserDetailService;
+import com.omar.vendingmachine.service.ProductService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.concurrent.Queues;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves the machines over a WebSocket session per user, so a coin costs a small message on an open connection instead of an
+ * authenticated HTTP request. The user is authenticated once when the session is opened. The commands of a session are handled
+ * one after the other in the order they are received, and each command is answered on the same session with the balance of
+ * the user, the product and the change of a purchase, or the error. See {@link MachineCommand} for the commands. A session
+ * holds a bounded number of commands waiting to be handled, a machine sending more is closed. The sessions of a user are closed
+ * once the tokens of the user are revoked, as they were authenticated before.
+ */
+@Component
+public class MachineWebSocketHandler extends TextWebSocketHandler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MachineWebSocketHandler.class);
+    private static final String TYPE = "type";
+    private static final String BALANCE = "balance";
+    private static final String PURCHASE = "purchase";
+    private static final String ERROR = "error";
+
+    @Autowired
+    CustomUserDetailService customUserDetailService;
+    @Autowired
+    ProductService productService;
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Value("${vending.ws.send-time-limit-ms:5000}")
+    private int sendTimeLimit;
+
+    @Value("${vending.ws.buffer-size-limit:65536}")
+    private int bufferSizeLimit;
+
+    @Value("${vending.ws.max-pending-commands:32}")
+    private int maxPendingCommands;
+
+    private final Map<String, MachineSession> sessions = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        // The decorator lets the replies be sent from the database threads while a slow machine only fills its own buffer.
+        WebSocketSession replies = new ConcurrentWebSocketSessionDecorator(session, sendTimeLimit, bufferSizeLimit);
+        String username = session.getPrincipal().getName();
+        Sinks.Many<MachineCommand> commands = Sinks.many().unicast().onBackpressureBuffer(Queues.<MachineCommand>get(maxPendingCommands).get());
+        Disposable handling = commands.asFlux()
+                .concatMap(command -> handle(username, command), 1)
+                .subscribe(reply -> send(replies, reply));
+        sessions.put(session.getId(), new MachineSession(session, username, commands, handling));
+    }
+
+    @Override
+    protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+        MachineSession machineSession = sessions.get(session.getId());
+        if (machineSession == null) {
+            return;
+        }
+        MachineCommand command;
+        try {
+            command = objectMapper.readValue(message.getPayload(), MachineCommand.class);
+        } catch (JsonProcessingException e) {
+            command = new MachineCommand();
+        }
+        if (machineSession.commands.tryEmitNext(command).isFailure()) {
+            LOGGER.warn("Session {} of user {} sent more than {} commands ahead, closing it", session.getId(),
+                    machineSession.username, maxPendingCommands);
+            close(session, CloseStatus.POLICY_VIOLATION);
+        }
+    }
+
+    /**
+     * Closes the sessions of the user opened before the revocation of the tokens of the user.
+     * @param event
+     */
+    @EventListener
+    public void onTokensRevoked(TokensRevokedEvent event) {
+        for (MachineSession machineSession : sessions.values()) {
+            if (machineSession.username.equals(event.getUsername()) && machineSession.openedAt < event.getRevokedBefore()) {
+                close(machineSession.session, CloseStatus.POLICY_VIOLATION.withReason("Tokens revoked"));
+            }
+        }
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        MachineSession machineSession = sessions.remove(session.getId());
+        if (machineSession != null) {
+            machineSession.commands.tryEmitComplete();
+            machineSession.handling.dispose();
+        }
+    }
+
+    /**
+     * Runs the command for the user.
+     * @return the reply to the command.
+     */
+    private Mono<Map<String, Object>> handle(String username, MachineCommand command) {
+        Mono<Map<String, Object>> reply;
+        if ("coin".equals(command.getType()) && command.getAmount() != null) {
+            reply = customUserDetailService.depoist(username, command.getAmount()).map(MachineWebSocketHandler::balance);
+        } else if ("coins".equals(command.getType())) {
+            reply = customUserDetailService.depositCoins(username, command.getAmounts()).map(MachineWebSocketHandler::balance);
+        } else if ("reset".equals(command.getType())) {
+            reply = customUserDetailService.resetDeposit(username).map(MachineWebSocketHandler::balance);
+        } else if ("buy".equals(command.getType()) && command.getProductId() != null) {
+            reply = productService.purchase(command.getProductId(), username).map(result -> {
+                Map<String, Object> purchase = new HashMap<>(result);
+                purchase.put(TYPE, PURCHASE);
+                return purchase;
+            });
+        } else {
+            reply = Mono.just(error("Unknown command"));
+        }
+        return reply.onErrorResume(e -> e instanceof InvalidDepositAmountException || e instanceof InvalidPurchaseException
+                || e instanceof ProductDoesNotExistException, e -> Mono.just(error(e.getMessage())))
+                .onErrorResume(e -> {
+                    LOGGER.error("Could not handle the {} command of user {}", command.getType(), username, e);
+                    return Mono.just(error("The command could not be handled"));
+                });
+    }
+
+    private static Map<String, Object> balance(User user) {
+        Map<String, Object> balance = new HashMap<>();
+        balance.put(TYPE, BALANCE);
+        balance.put(UserContants.DEPOSIT, user.getDeposit());
+        return balance;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> error = new HashMap<>();
+        error.put(TYPE, ERROR);
+        error.put(UserContants.MESSAGE, message);
+        return error;
+    }
+
+    private void send(WebSocketSession session, Map<String, Object> reply) {
+        try {
+            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(reply)));
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not send the reply to session {}, closing it: {}", session.getId(), e.getMessage());
+            close(session, CloseStatus.SESSION_NOT_RELIABLE);
+        }
+    }
+
+    private static void close(WebSocketSession session, CloseStatus status) {
+        try {
+            session.close(status);
+        } catch (IOException e) {
+            LOGGER.debug("Could not close session {}", session.getId(), e);
+        }
+    }
+
+    private static class MachineSession {
+        private final WebSocketSession session;
+        private final String username;
+        private final long openedAt = System.currentTimeMillis();
+        private final Sinks.Many<MachineCommand> commands;
+        private final Disposable handling;
+
+        MachineSession(WebSocketSession session, String username, Sinks.Many<MachineCommand> commands, Disposable handling) {
+            this.session = session;
+            this.username = username;
+            this.commands = commands;
+            this.handling = handling;
+        }
+    }
+}
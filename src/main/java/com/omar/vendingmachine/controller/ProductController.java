@@ -1,23 +1,57 @@
 package com.omar.vendingmachine.controller;
 
+import com.omar.vendingmachine.constants.ProductConstants;
 import com.omar.vendingmachine.exceptions.InvalidPurchaseException;
+import com.omar.vendingmachine.exceptions.ProductConflictException;
 import com.omar.vendingmachine.exceptions.ProductDoesNotExistException;
 import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.MenuSnapshot;
+import com.omar.vendingmachine.pojo.ProductFilter;
 import com.omar.vendingmachine.pojo.ProductPojo;
+import com.omar.vendingmachine.service.MenuSnapshotService;
+import com.omar.vendingmachine.service.ProductSearchService;
+import com.omar.vendingmachine.service.ProductStreamService;
 import com.omar.vendingmachine.service.ProductService;
+import com.omar.vendingmachine.service.SalesRollupService;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.validation.ConstraintViolationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 public class ProductController {
     @Autowired
     ProductService productService;
+    @Autowired
+    MenuSnapshotService menuSnapshotService;
+    @Autowired
+    ProductSearchService productSearchService;
+    @Autowired
+    SalesRollupService salesRollupService;
+    @Autowired
+    ProductStreamService productStreamService;
+
+    @Value("${vending.catalog.max-page-size:100}")
+    private int maxPageSize;
 
     @PostMapping("/product")
     public ResponseEntity<?> createProduct(@RequestBody ProductPojo productPojo) {
@@ -41,10 +75,24 @@ public class ProductController {
             product = productService.updateProduct(productPojo, username);
         } catch (ProductDoesNotExistException | ConstraintViolationException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (ProductConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         }
         return ResponseEntity.ok().body(product);
     }
 
+    @PostMapping("/product/batch")
+    public ResponseEntity<?> createProducts(@RequestBody List<ProductPojo> productPojos) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return ResponseEntity.ok().body(productService.createProducts(productPojos, authentication.getName()));
+    }
+
+    @PutMapping("/product/batch")
+    public ResponseEntity<?> updateProducts(@RequestBody List<ProductPojo> productPojos) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        return ResponseEntity.ok().body(productService.updateProducts(productPojos, authentication.getName()));
+    }
+
     @DeleteMapping("/product/{id}")
     public ResponseEntity<?> deleteProduct(@PathVariable String id) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
@@ -53,31 +101,118 @@ public class ProductController {
             productService.deleteProduct(id, username);
         } catch (ProductDoesNotExistException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
+        } catch (ProductConflictException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         }
         return ResponseEntity.ok().body(String.format("successfully deleted product %s", id));
     }
 
-    @GetMapping("/product/{id}")
-    public ResponseEntity<?> getProduct(@PathVariable String id) {
-        Product product = productService.findProductById(id);
-        if (product == null) {
-            return ResponseEntity.ok().body(String.format("No product with id %s was found", id));
+    @GetMapping("/product/catalog")
+    public Mono<ResponseEntity<?>> getCatalog(@RequestParam(required = false) String after,
+                                              @RequestParam(defaultValue = "20") int limit,
+                                              @RequestParam(defaultValue = "false") boolean includeDeleted) {
+        return productService.catalogPage(after, limit, includeDeleted)
+                .<ResponseEntity<?>>map(page -> ResponseEntity.ok().body(page))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
+    }
+
+    @GetMapping(value = "/product/catalog/stream", produces = MediaType.APPLICATION_NDJSON_VALUE)
+    public Flux<Product> streamCatalog(@RequestParam(required = false) String after,
+                                       @RequestParam(defaultValue = "0") int limit,
+                                       @RequestParam(defaultValue = "false") boolean includeDeleted) {
+        // Checked before streaming, the status can not be changed once the first product is written.
+        if (after != null && !ObjectId.isValid(after)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, String.format("Invalid product id %s", after));
         }
-        return ResponseEntity.ok().body(product);
+        return productService.catalog(after, limit, includeDeleted);
     }
 
-    @PostMapping("/product/buy/{id}")
-    public ResponseEntity<?> buyProduct(@PathVariable String id) {
-        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        String username = authentication.getName();
-        Map<String, Object> result;
+    @GetMapping(value = "/product/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamChanges(@RequestParam(required = false) String seller,
+                                    @RequestParam(required = false) List<String> productId,
+                                    @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return productStreamService.subscribe(seller, productId, lastEventId);
+    }
+
+    @GetMapping("/product/filter")
+    public Mono<ResponseEntity<?>> filterProducts(@RequestParam(required = false) Integer minCost,
+                                                  @RequestParam(required = false) Integer maxCost,
+                                                  @RequestParam(defaultValue = "false") boolean inStock,
+                                                  @RequestParam(required = false) String seller,
+                                                  @RequestParam(defaultValue = "20") int limit) {
+        ProductFilter filter = new ProductFilter();
+        filter.setMinCost(minCost);
+        filter.setMaxCost(maxCost);
+        filter.setInStock(inStock);
+        filter.setSellerUserName(seller);
+        return productService.filterProducts(filter, limit)
+                .collectList()
+                .<ResponseEntity<?>>map(products -> ResponseEntity.ok().body(products))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
+    }
+
+    @GetMapping("/product/menu")
+    public ResponseEntity<byte[]> getMenu(@RequestParam(required = false) String seller, WebRequest request) {
+        MenuSnapshot menu = menuSnapshotService.getMenu(seller);
+        if (request.checkNotModified(menu.getEtag())) {
+            return null;
+        }
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(menu.getGzip());
+        }
+        return response.body(menu.getJson());
+    }
+
+    @GetMapping("/product/search")
+    public ResponseEntity<?> searchProducts(@RequestParam String q,
+                                            @RequestParam(defaultValue = "true") boolean fuzzy,
+                                            @RequestParam(defaultValue = "0") int page,
+                                            @RequestParam(defaultValue = "20") int size) {
+        List<Product> products;
         try {
-            result = productService.buyProduct(id, username);
-        } catch (InvalidPurchaseException | ProductDoesNotExistException e) {
-            return ResponseEntity.ok().body(e.getMessage());
+            products = productSearchService.search(q, fuzzy, page, size);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
         }
+        Map<String, Object> result = new HashMap<>();
+        result.put(ProductConstants.PRODUCTS, products);
+        result.put(ProductConstants.NEXT, products.size() < Math.min(size, maxPageSize) ? null : page + 1);
         return ResponseEntity.ok().body(result);
     }
 
+    @GetMapping("/product/sales")
+    public Mono<ResponseEntity<?>> getSales(@RequestParam(defaultValue = "hour") String period,
+                                            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date from,
+                                            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Date to) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String username = authentication.getName();
+        Date end = to == null ? new Date() : to;
+        Date start = from == null ? new Date(end.getTime() - TimeUnit.DAYS.toMillis(1)) : from;
+        return salesRollupService.report(username, period, start, end)
+                .<ResponseEntity<?>>map(rollups -> ResponseEntity.ok().body(rollups))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
+    }
+
+    @GetMapping("/product/{id}")
+    public Mono<ResponseEntity<?>> getProduct(@PathVariable String id) {
+        return productService.findProduct(id)
+                .<ResponseEntity<?>>map(product -> ResponseEntity.ok().body(product))
+                .defaultIfEmpty(ResponseEntity.ok().body(String.format("No product with id %s was found", id)));
+    }
+
+    @PostMapping("/product/buy/{id}")
+    public Mono<ResponseEntity<?>> buyProduct(@PathVariable String id) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String username = authentication.getName();
+        return productService.purchase(id, username)
+                .<ResponseEntity<?>>map(result -> ResponseEntity.ok().body(result))
+                .onErrorResume(e -> e instanceof InvalidPurchaseException || e instanceof ProductDoesNotExistException,
+                        e -> Mono.just(ResponseEntity.ok().body(e.getMessage())));
+    }
+
 
 }
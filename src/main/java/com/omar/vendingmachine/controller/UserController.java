@@ -1,37 +1,70 @@
 package com.omar.vendingmachine.controller;
 
+import com.omar.vendingmachine.constants.UserContants;
 import com.omar.vendingmachine.exceptions.InvalidDepositAmountException;
 import com.omar.vendingmachine.service.CustomUserDetailService;
+import com.omar.vendingmachine.service.PurchaseHistoryService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @RestController
 public class UserController {
     @Autowired
     CustomUserDetailService customUserDetailService;
+    @Autowired
+    PurchaseHistoryService purchaseHistoryService;
 
     @PutMapping("/user/deposit/{amount}")
-    public ResponseEntity<?> deposit(@PathVariable int amount) {
+    public Mono<ResponseEntity<?>> deposit(@PathVariable int amount) {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String username = authentication.getName();
+        return customUserDetailService.depoist(username, amount)
+                .<ResponseEntity<?>>map(user -> ResponseEntity.ok().body(String.format("Amount %s was deposit to user %s successfully", amount, username)))
+                .onErrorResume(InvalidDepositAmountException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
+    }
+
+    @PutMapping("/user/deposit")
+    public Mono<ResponseEntity<?>> depositCoins(@RequestBody List<Integer> coins) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         String username = authentication.getName();
-        try {
-            customUserDetailService.depoist(username, amount);
-        } catch (InvalidDepositAmountException e) {
-            return ResponseEntity.badRequest().body(e.getMessage());
-        }
-        return ResponseEntity.ok().body(String.format("Amount %s was deposit to user %s successfully", amount, username));
+        return customUserDetailService.depositCoins(username, coins)
+                .<ResponseEntity<?>>map(user -> {
+                    Map<String, Object> result = new HashMap<>();
+                    result.put(UserContants.DEPOSIT, user.getDeposit());
+                    return ResponseEntity.ok().body(result);
+                })
+                .onErrorResume(InvalidDepositAmountException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 
     @PutMapping("/user/deposit/reset")
-    public ResponseEntity<?> resetDeposit() {
+    public Mono<ResponseEntity<?>> resetDeposit() {
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        String username = authentication.getName();
+        return customUserDetailService.resetDeposit(username)
+                .<ResponseEntity<?>>map(user -> ResponseEntity.ok().body("Successfullu reset deposit"))
+                .onErrorResume(InvalidDepositAmountException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
+    }
+
+    @GetMapping("/user/purchases")
+    public Mono<ResponseEntity<?>> getPurchases(@RequestParam(required = false) String before,
+                                                @RequestParam(defaultValue = "20") int limit) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
         String username = authentication.getName();
-        customUserDetailService.resetDeposit(username);
-        return ResponseEntity.ok().body("Successfullu reset deposit");
+        return purchaseHistoryService.purchases(username, before, limit)
+                .<ResponseEntity<?>>map(purchases -> ResponseEntity.ok().body(purchases))
+                .onErrorResume(IllegalArgumentException.class, e -> Mono.just(ResponseEntity.badRequest().body(e.getMessage())));
     }
 }
@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.event;
+
+import com.omar.vendingmachine.model.product.Product;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Published whenever a product is saved or its stock changes on this node.
+ */
+@Getter
+@AllArgsConstructor
+public class ProductChangedEvent {
+    /**
+     * The product as it is after the change, or null in case the whole catalog was changed at once.
+     */
+    private final Product product;
+
+    /**
+     * Whether the change was only made to the stock this node claimed ahead, so no write of the product reports it.
+     */
+    private final boolean reserved;
+
+    public ProductChangedEvent(Product product) {
+        this(product, false);
+    }
+}
@@ -0,0 +1,32 @@
+package com.omar.vendingmachine.event;
+
+import com.omar.vendingmachine.model.product.Product;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The latest version seen of each product, used by the listeners of {@link ProductChangedEvent} to ignore the changes that
+ * arrive after a newer change of the same product, e.g. from concurrent purchases.
+ */
+public class ProductVersions {
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Records the version of the product in case it is not older than the latest version seen.
+     * @param product
+     * @return whether the product is not older than the latest version seen, products without a version always are.
+     */
+    public boolean advance(Product product) {
+        Long version = product.getVersion();
+        if (version == null) {
+            return true;
+        }
+        Long latest = versions.compute(product.getId(), (id, current) -> current == null || current <= version ? version : current);
+        return latest.equals(version);
+    }
+
+    public void clear() {
+        versions.clear();
+    }
+}
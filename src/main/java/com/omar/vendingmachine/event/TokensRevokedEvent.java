@@ -0,0 +1,18 @@
+package com.omar.vendingmachine.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Published whenever the tokens of a user are revoked, on this node or, once the revocation list is reloaded, on another node.
+ */
+@Getter
+@AllArgsConstructor
+public class TokensRevokedEvent {
+    private final String username;
+
+    /**
+     * The time before which the tokens issued to the user are revoked, in milliseconds.
+     */
+    private final long revokedBefore;
+}
@@ -0,0 +1,10 @@
+package com.omar.vendingmachine.exceptions;
+
+/**
+ * This is to be thrown in case a product could not be changed because it was changed by someone else meanwhile.
+ */
+public class ProductConflictException extends Exception {
+    public ProductConflictException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,139 @@
+package com.omar.vendingmachine.journal;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * An entry of the transaction journal. An entry is written as its length, the CRC32 of its content and its content, so a
+ * partly written entry at the end of the journal is detected and ignored.
+ */
+@Getter
+@AllArgsConstructor
+public class JournalEntry {
+    /**
+     * The bytes before the content of an entry, its length and its CRC32.
+     */
+    static final int HEADER_SIZE = 8;
+
+    public enum Type {
+        /**
+         * The amount was deposit by the user.
+         */
+        DEPOSIT,
+        /**
+         * The deposit of the user was reset to 0.
+         */
+        RESET,
+        /**
+         * The user bought one item of the product for the amount, the whole deposit was taken and the change was given back.
+         */
+        PURCHASE,
+        /**
+         * The seller set the stock of the product to the amount, by creating the product or updating its stock.
+         */
+        STOCK,
+        /**
+         * The seller deleted the product.
+         */
+        DELETE,
+        /**
+         * One item of the product was taken out of stock for a purchase of the user, before the payment. It is followed by the
+         * purchase once paid, or by the put back of the item.
+         */
+        TAKE,
+        /**
+         * The item taken for a purchase of the user was put back to the stock, as the payment failed.
+         */
+        PUT_BACK
+    }
+
+    private final long sequence;
+    private final long timestamp;
+    private final Type type;
+    private final String username;
+    private final String productId;
+    private final int amount;
+    private final int change;
+
+    /**
+     * Returns the number of bytes the entry takes in the journal.
+     * @return
+     */
+    int size() {
+        return HEADER_SIZE + 8 + 8 + 1 + 4 + 4 + 2 + utf8(username).length + 2 + utf8(productId).length;
+    }
+
+    /**
+     * Writes the entry at the position of the buffer, the buffer is expected to have room for {@link #size()} bytes.
+     * @param buffer
+     */
+    void write(ByteBuffer buffer) {
+        byte[] user = utf8(username);
+        byte[] product = utf8(productId);
+        int start = buffer.position();
+        buffer.position(start + HEADER_SIZE);
+        buffer.putLong(sequence);
+        buffer.putLong(timestamp);
+        buffer.put((byte) type.ordinal());
+        buffer.putInt(amount);
+        buffer.putInt(change);
+        buffer.putShort((short) user.length);
+        buffer.put(user);
+        buffer.putShort((short) product.length);
+        buffer.put(product);
+        int end = buffer.position();
+        int length = end - start - HEADER_SIZE;
+        buffer.putInt(start + 4, crc(buffer, start + HEADER_SIZE, length));
+        // The length is written last, so a reader never takes a partly written entry for a complete one.
+        buffer.putInt(start, length);
+    }
+
+    /**
+     * Reads the entry at the position of the buffer and moves the position after it.
+     * @param buffer
+     * @return the entry, or null in case there is no complete entry at the position, which is the end of the journal.
+     */
+    static JournalEntry read(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        if (length <= 0 || length > buffer.remaining() - HEADER_SIZE || crc(buffer, start + HEADER_SIZE, length) != buffer.getInt(start + 4)) {
+            return null;
+        }
+        buffer.position(start + HEADER_SIZE);
+        long sequence = buffer.getLong();
+        long timestamp = buffer.getLong();
+        Type type = Type.values()[buffer.get()];
+        int amount = buffer.getInt();
+        int change = buffer.getInt();
+        String username = readString(buffer);
+        String productId = readString(buffer);
+        buffer.position(start + HEADER_SIZE + length);
+        return new JournalEntry(sequence, timestamp, type, username, productId.isEmpty() ? null : productId, amount, change);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        ByteBuffer content = buffer.duplicate();
+        content.limit(offset + length);
+        content.position(offset);
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+}
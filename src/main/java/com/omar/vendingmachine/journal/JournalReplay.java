@@ -0,0 +1,171 @@
+package com.omar.vendingmachine.journal;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Rebuilds the balances of the users and the stocks of the products from the transaction journal, e.g. to check them against
+ * the database or to restore them after it was lost. The stock of a product is the last stock set by its seller and the items
+ * taken and put back since, for the products whose stock was not set in the journal only the change is known. The stock is the
+ * whole stock of the product, the items the nodes claimed ahead are part of it, so the claims are not journaled. The items
+ * taken for purchases that were neither paid nor put back are reported as in flight, they are the purchases interrupted by a
+ * crash. Run it with the journal directory as argument:
+ * {@code java -cp vending-machine.jar com.omar.vendingmachine.journal.JournalReplay journal}.
+ */
+public class JournalReplay {
+    private final Map<String, Integer> balances = new TreeMap<>();
+    private final Map<String, Integer> stocks = new TreeMap<>();
+    private final Map<String, Integer> stockChanges = new TreeMap<>();
+    private final Set<String> deleted = new TreeSet<>();
+    private final Map<String, Integer> inFlight = new TreeMap<>();
+    private long entries;
+
+    public static void main(String[] args) throws IOException {
+        JournalReplay replay = replay(Paths.get(args.length > 0 ? args[0] : "journal"));
+        System.out.printf("Replayed %d entries%n", replay.entries);
+        replay.balances.forEach((username, deposit) -> System.out.printf("user %s deposit %d%n", username, deposit));
+        replay.stocks.forEach((id, stock) -> System.out.printf("product %s stock %d%n", id, stock));
+        replay.stockChanges.forEach((id, change) -> System.out.printf("product %s stock %+d%n", id, change));
+        replay.deleted.forEach(id -> System.out.printf("product %s deleted%n", id));
+        replay.inFlight.forEach((purchase, items) -> System.out.printf("purchase %s in flight %d%n", purchase, items));
+    }
+
+    /**
+     * Replays all the entries of the journal in the input directory.
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static JournalReplay replay(Path directory) throws IOException {
+        JournalReplay replay = new JournalReplay();
+        for (Path segment : TransactionJournal.segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                JournalEntry entry;
+                while ((entry = JournalEntry.read(buffer)) != null) {
+                    replay.apply(entry);
+                }
+            }
+        }
+        return replay;
+    }
+
+    private void apply(JournalEntry entry) {
+        entries++;
+        switch (entry.getType()) {
+            case DEPOSIT:
+                balances.merge(entry.getUsername(), entry.getAmount(), Integer::sum);
+                break;
+            case RESET:
+                balances.put(entry.getUsername(), 0);
+                break;
+            case PURCHASE:
+                // A purchase takes the whole deposit, the rest is given back as change.
+                balances.put(entry.getUsername(), 0);
+                // The item was taken by the take before the purchase, the journals written before the takes have none.
+                if (!settle(entry)) {
+                    changeStock(entry.getProductId(), -1);
+                }
+                break;
+            case STOCK:
+                stocks.put(entry.getProductId(), entry.getAmount());
+                stockChanges.remove(entry.getProductId());
+                deleted.remove(entry.getProductId());
+                break;
+            case DELETE:
+                stocks.remove(entry.getProductId());
+                stockChanges.remove(entry.getProductId());
+                deleted.add(entry.getProductId());
+                break;
+            case TAKE:
+                changeStock(entry.getProductId(), -1);
+                inFlight.merge(purchase(entry), 1, Integer::sum);
+                break;
+            case PUT_BACK:
+                changeStock(entry.getProductId(), 1);
+                settle(entry);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void changeStock(String productId, int change) {
+        if (stocks.containsKey(productId)) {
+            stocks.merge(productId, change, Integer::sum);
+        } else {
+            stockChanges.merge(productId, change, Integer::sum);
+        }
+    }
+
+    /**
+     * Settles the item taken for the purchase of the entry.
+     * @return whether an item was taken for the purchase.
+     */
+    private boolean settle(JournalEntry entry) {
+        String purchase = purchase(entry);
+        Integer items = inFlight.get(purchase);
+        if (items == null) {
+            return false;
+        }
+        if (items == 1) {
+            inFlight.remove(purchase);
+        } else {
+            inFlight.put(purchase, items - 1);
+        }
+        return true;
+    }
+
+    private static String purchase(JournalEntry entry) {
+        return entry.getUsername() + "/" + entry.getProductId();
+    }
+
+    /**
+     * Returns the deposit of each user in the journal.
+     * @return
+     */
+    public Map<String, Integer> getBalances() {
+        return balances;
+    }
+
+    /**
+     * Returns the stock of each product whose stock was set in the journal and that is not deleted.
+     * @return
+     */
+    public Map<String, Integer> getStocks() {
+        return stocks;
+    }
+
+    /**
+     * Returns the change of the stock of each product whose stock was not set in the journal.
+     * @return
+     */
+    public Map<String, Integer> getStockChanges() {
+        return stockChanges;
+    }
+
+    public Set<String> getDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Returns the items taken for the purchases that were neither paid nor put back, by the buyer and the product, as
+     * {@code username/productId}.
+     * @return
+     */
+    public Map<String, Integer> getInFlight() {
+        return inFlight;
+    }
+
+    public long getEntries() {
+        return entries;
+    }
+}
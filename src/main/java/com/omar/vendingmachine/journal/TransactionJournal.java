@@ -0,0 +1,192 @@
+package com.omar.vendingmachine.journal;
+
+import com.omar.vendingmachine.pojo.Change;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of the deposits, the resets, the purchases and the stock set or deleted by the sellers, kept in local
+ * files so the balances and the stocks can be rebuilt, see {@link JournalReplay}. The item of a purchase is journaled when it
+ * is taken out of stock, before the payment, so a purchase interrupted by a crash is found in the journal. The journal is
+ * split in segments of a fixed size that are mapped in memory, so an entry is written with a copy to memory and no system
+ * call. The written entries survive a crash of the application right away, as the mapped pages belong to the operating
+ * system. They are forced to the disk in the background every flush interval, so the writers never wait for the disk and all
+ * the entries written during an interval share one force.
+ */
+@Component
+public class TransactionJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransactionJournal.class);
+    static final String SEGMENT_PREFIX = "journal-";
+    static final String SEGMENT_SUFFIX = ".log";
+
+    @Value("${vending.journal.enabled:true}")
+    private boolean enabled;
+
+    @Value("${vending.journal.dir:journal}")
+    private String dir;
+
+    @Value("${vending.journal.segment-size:67108864}")
+    private int segmentSize;
+
+    @Value("${vending.journal.flush-ms:10}")
+    private long flushInterval;
+
+    private long segment;
+    private long sequence;
+    private MappedByteBuffer buffer;
+    private boolean dirty;
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Opens the last segment of the journal and continues after its last complete entry.
+     */
+    @PostConstruct
+    public synchronized void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Path directory = Paths.get(dir);
+        Files.createDirectories(directory);
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            map(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            map(segmentNumber(last));
+            JournalEntry entry;
+            while ((entry = JournalEntry.read(buffer)) != null) {
+                sequence = entry.getSequence() + 1;
+            }
+            // The rest of the segment may hold a partly written entry, it is overwritten by the next entry.
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        flush();
+    }
+
+    public void deposit(String username, int amount) {
+        append(JournalEntry.Type.DEPOSIT, username, null, amount, 0);
+    }
+
+    public void reset(String username) {
+        append(JournalEntry.Type.RESET, username, null, 0, 0);
+    }
+
+    public void purchase(String username, String productId, int cost, Change change) {
+        append(JournalEntry.Type.PURCHASE, username, productId, cost, change == null ? 0 : change.getAmount());
+    }
+
+    public void stock(String username, String productId, int amount) {
+        append(JournalEntry.Type.STOCK, username, productId, amount, 0);
+    }
+
+    public void delete(String username, String productId) {
+        append(JournalEntry.Type.DELETE, username, productId, 0, 0);
+    }
+
+    public void take(String username, String productId) {
+        append(JournalEntry.Type.TAKE, username, productId, 1, 0);
+    }
+
+    public void putBack(String username, String productId) {
+        append(JournalEntry.Type.PUT_BACK, username, productId, 1, 0);
+    }
+
+    /**
+     * Forces the entries written since the last flush to the disk.
+     */
+    public void flush() {
+        MappedByteBuffer written;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            written = buffer;
+        }
+        written.force();
+    }
+
+    private void append(JournalEntry.Type type, String username, String productId, int amount, int change) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            synchronized (this) {
+                JournalEntry entry = new JournalEntry(sequence, System.currentTimeMillis(), type, username, productId, amount, change);
+                if (buffer.remaining() < entry.size()) {
+                    buffer.force();
+                    map(segment + 1);
+                }
+                entry.write(buffer);
+                sequence++;
+                dirty = true;
+            }
+        } catch (IOException | RuntimeException e) {
+            // The journal is a record of the changes already made, a failing journal does not fail the change.
+            LOGGER.error("Could not write the {} of user {} to the journal", type, username, e);
+        }
+    }
+
+    private void map(long number) throws IOException {
+        Path path = Paths.get(dir, segmentName(number));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid once the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        segment = number;
+    }
+
+    static String segmentName(long number) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Lists the segments of the journal in the input directory in the order they were written.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        File[] files = directory.toFile().listFiles((parent, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        List<Path> segments = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                segments.add(file.toPath());
+            }
+        }
+        segments.sort(null);
+        return segments;
+    }
+}
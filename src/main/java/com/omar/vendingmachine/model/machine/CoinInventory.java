@@ -0,0 +1,24 @@
+package com.omar.vendingmachine.model.machine;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Document(collection = "coin_inventory")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class CoinInventory {
+
+    @Id
+    private String id;
+
+    private Map<String, Integer> coins = new HashMap<>();
+}
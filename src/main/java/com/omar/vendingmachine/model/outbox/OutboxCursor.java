@@ -0,0 +1,36 @@
+package com.omar.vendingmachine.model.outbox;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * The id of the last outbox event delivered to a sink, so the publisher resumes after it once restarted, and the lease of the
+ * node publishing the events, so only one node publishes at a time.
+ */
+@Document(collection = "outbox_cursor")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class OutboxCursor {
+
+    @Id
+    private String id;
+
+    private String lastId;
+
+    private Date updatedAt;
+
+    /**
+     * The node holding the lease.
+     */
+    private String owner;
+
+    private Date leaseUntil;
+}
@@ -0,0 +1,58 @@
+package com.omar.vendingmachine.model.outbox;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A change of a product waiting to be delivered to the downstream systems. The ids are object ids, so the events are read
+ * in the order they were written. The event is first recorded in the document changed with it, by the same write, and then
+ * moved to the outbox under the id it was recorded with, see {@link com.omar.vendingmachine.service.OutboxService}.
+ */
+@Document(collection = "outbox")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class OutboxEvent {
+
+    @Id
+    private String id;
+
+    /**
+     * The id the event was recorded with in the changed document, so an event moved twice to the outbox is only kept once.
+     */
+    @Indexed(unique = true)
+    private String sourceId;
+
+    private OutboxEventType type;
+
+    private String productId;
+
+    private String sellerUserName;
+
+    /**
+     * The buyer, only set for purchases.
+     */
+    private String username;
+
+    /**
+     * The items bought or added to the stock.
+     */
+    private Integer quantity;
+
+    private Integer cost;
+
+    /**
+     * The stock of the product after the change.
+     */
+    private Integer amountAvaillable;
+
+    private Date createdAt;
+}
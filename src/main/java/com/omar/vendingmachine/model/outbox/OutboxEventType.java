@@ -0,0 +1,7 @@
+package com.omar.vendingmachine.model.outbox;
+
+public enum OutboxEventType {
+    PURCHASE,
+    RESTOCK,
+    DELETE
+}
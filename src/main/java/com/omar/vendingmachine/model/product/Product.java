@@ -2,14 +2,27 @@ package com.omar.vendingmachine.model.product;
 
 import lombok.*;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 
+/**
+ * The indexes serve the filtered listings, see {@link com.omar.vendingmachine.pojo.ProductFilter}. The equality filters come
+ * first and the cost comes before the stock, so the listings are read in the order of the cost and the stock filter is checked
+ * on the index keys. The pending events index finds the products with outbox events not moved to the outbox yet.
+ */
 @Data
 @Document(collection = "product")
+@CompoundIndexes({
+        @CompoundIndex(name = "deleted_cost_stock", def = "{'deleted': 1, 'cost': 1, 'amountAvaillable': 1}"),
+        @CompoundIndex(name = "seller_deleted_cost_stock", def = "{'sellerUserName': 1, 'deleted': 1, 'cost': 1, 'amountAvaillable': 1}"),
+        @CompoundIndex(name = "pending_events", def = "{'pendingEvents.sourceId': 1}", sparse = true)
+})
 @Setter
 @Getter
 @AllArgsConstructor
@@ -33,4 +46,10 @@ public class Product {
     private String sellerUserName;
 
     private boolean deleted = false;
+
+    /**
+     * Increased by every write of the product, so a change based on an outdated read of the product is detected.
+     */
+    @Version
+    private Long version;
 }
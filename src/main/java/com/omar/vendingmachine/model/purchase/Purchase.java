@@ -0,0 +1,38 @@
+package com.omar.vendingmachine.model.purchase;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.TimeSeries;
+import org.springframework.data.mongodb.core.timeseries.Granularity;
+
+import java.util.Date;
+
+/**
+ * A completed purchase. The purchases are kept in a time series collection grouped by buyer, so the history of a buyer is
+ * stored and read in time order.
+ */
+@TimeSeries(collection = "purchase", timeField = "timestamp", metaField = "username", granularity = Granularity.SECONDS)
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class Purchase {
+
+    @Id
+    private String id;
+
+    private String username;
+
+    private String productId;
+
+    private String productName;
+
+    private Integer cost;
+
+    private Integer change;
+
+    private Date timestamp;
+}
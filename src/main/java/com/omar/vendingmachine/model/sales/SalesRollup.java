@@ -0,0 +1,42 @@
+package com.omar.vendingmachine.model.sales;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * The sales of one product during one hour or one day. The rollups are kept up to date by increments, so a sales report reads
+ * one document per product and period whatever the number of purchases.
+ */
+@Document(collection = "sales_rollup")
+@CompoundIndex(name = "seller_period_start", def = "{'sellerUserName': 1, 'period': 1, 'start': 1}")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class SalesRollup {
+
+    /**
+     * The product id, the period and the start of the period, so the increments of a period always reach the same document.
+     */
+    @Id
+    private String id;
+
+    private String productId;
+
+    private String sellerUserName;
+
+    private String period;
+
+    private Date start;
+
+    private long units;
+
+    private long revenue;
+}
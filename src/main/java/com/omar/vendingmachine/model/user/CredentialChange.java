@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.model.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Marks the credentials of the user verified before the change date as outdated, so every node forgets them.
+ */
+@Document(collection = "credential_change")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class CredentialChange {
+
+    @Id
+    private String username;
+
+    private Date changedAt;
+}
@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.model.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Marks all the tokens issued to the user before the revocation date as revoked.
+ */
+@Document(collection = "token_revocation")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class TokenRevocation {
+
+    @Id
+    private String username;
+
+    private Date revokedBefore;
+}
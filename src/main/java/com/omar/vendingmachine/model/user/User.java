@@ -5,7 +5,8 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.DBRef;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import javax.validation.constraints.Min;
@@ -13,7 +14,11 @@ import javax.validation.constraints.NotBlank;
 import java.util.HashSet;
 import java.util.Set;
 
+/**
+ * The pending events index finds the users with purchases not moved to the outbox yet.
+ */
 @Document(collection = "user")
+@CompoundIndex(name = "pending_events", def = "{'pendingEvents.sourceId': 1}", sparse = true)
 @Setter
 @Getter
 @AllArgsConstructor
@@ -23,6 +28,7 @@ public class User {
     @Id
     private String id;
 
+    @Indexed
     @NotBlank(message = "Username is mandatory")
     private String username;
 
@@ -32,7 +38,9 @@ public class User {
     @Min(value = 0, message = "Deposit can not be less than 0")
     private Integer deposit;
 
-    @DBRef
+    /**
+     * The roles are embedded, so loading a user is a single read. See {@link com.omar.vendingmachine.service.RoleService}.
+     */
     private Set<Role> roles = new HashSet<>();
 
 }
@@ -0,0 +1,34 @@
+package com.omar.vendingmachine.model.user;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A session of a user, shared between all the nodes. Sessions without requests for longer than the session timeout are removed
+ * by the database.
+ */
+@Document(collection = "user_session")
+@Setter
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class UserSession {
+
+    @Id
+    private String sessionId;
+
+    @Indexed
+    private String principal;
+
+    @Indexed(expireAfter = "30m")
+    private Date lastRequest;
+
+    private boolean expired;
+}
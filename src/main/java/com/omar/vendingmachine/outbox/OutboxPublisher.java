@@ -0,0 +1,157 @@
+package com.omar.vendingmachine.outbox;
+
+import com.mongodb.client.result.UpdateResult;
+import com.omar.vendingmachine.constants.OutboxConstants;
+import com.omar.vendingmachine.model.outbox.OutboxCursor;
+import com.omar.vendingmachine.model.outbox.OutboxEvent;
+import com.omar.vendingmachine.service.OutboxService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Delivers the outbox events to the {@link OutboxSink} in batches, in the order of their ids. The id of the last delivered event
+ * is saved after each batch and the next batch is read after it, so the events are delivered at least once and a restarted
+ * publisher resumes where it stopped. The object ids hold the second they were made on the writing node, so an event is only
+ * read once its second is older than the settle lag, by then the events of that second written by the other nodes are expected
+ * to be in the outbox too and none of them is skipped. Only the node holding the lease of the cursor publishes, the lease is
+ * renewed on every run and taken over by another node once it expires, and the cursor is only moved forward by the holder of
+ * the lease. The delivered events are removed from the outbox. Every run on every node first moves the pending events recorded
+ * with the changes to the outbox, see {@link OutboxService}.
+ */
+@Component
+public class OutboxPublisher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxPublisher.class);
+    private static final String CURSOR_ID = "publisher";
+
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired
+    OutboxSink outboxSink;
+    @Autowired
+    OutboxService outboxService;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${vending.outbox.batch-size:500}")
+    private int batchSize;
+
+    @Value("${vending.outbox.settle-lag-ms:2000}")
+    private long settleLag;
+
+    @Value("${vending.outbox.lease-ms:30000}")
+    private long leaseDuration;
+
+    private final String owner = new ObjectId().toHexString();
+    private volatile String lastId;
+    private final LongAdder published = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicLong lastCreatedAt = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        FunctionCounter.builder("vending.outbox.published", published, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.outbox.batches", batches, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.outbox.failures", failures, LongAdder::sum).register(meterRegistry);
+        Gauge.builder("vending.outbox.lag.ms", lastCreatedAt, createdAt -> createdAt.get() == 0 ? 0 : System.currentTimeMillis() - createdAt.get())
+                .register(meterRegistry);
+    }
+
+    /**
+     * Delivers the settled events written since the last delivered one, batch after batch, until none is left or the sink
+     * fails, in case this node holds the lease. A failed batch is delivered again on the next run.
+     */
+    @Scheduled(fixedDelayString = "${vending.outbox.poll-ms:500}")
+    public synchronized void publish() {
+        outboxService.moveAll().block();
+        if (!lease()) {
+            return;
+        }
+        while (true) {
+            Criteria criteria = Criteria.where(OutboxConstants.ID).lt(ObjectId.getSmallestWithDate(new Date(System.currentTimeMillis() - settleLag)));
+            if (lastId != null) {
+                criteria.gt(new ObjectId(lastId));
+            }
+            List<OutboxEvent> events = reactiveMongoTemplate.find(new Query(criteria).with(Sort.by(OutboxConstants.ID)).limit(batchSize),
+                    OutboxEvent.class).collectList().block();
+            if (events == null || events.isEmpty()) {
+                return;
+            }
+            try {
+                outboxSink.publish(events);
+            } catch (Exception e) {
+                failures.increment();
+                LOGGER.warn("Could not deliver {} outbox events, retrying on the next run: {}", events.size(), e.getMessage());
+                return;
+            }
+            OutboxEvent last = events.get(events.size() - 1);
+            Criteria held = Criteria.where(OutboxConstants.ID).is(CURSOR_ID).and(OutboxConstants.OWNER).is(owner);
+            Criteria behind = new Criteria().orOperator(Criteria.where(OutboxConstants.LAST_ID).exists(false),
+                    Criteria.where(OutboxConstants.LAST_ID).lt(last.getId()));
+            long moved = reactiveMongoTemplate.updateFirst(new Query(held).addCriteria(behind),
+                    new Update().set(OutboxConstants.LAST_ID, last.getId()).set(OutboxConstants.UPDATED_AT, new Date()),
+                    OutboxCursor.class).map(UpdateResult::getModifiedCount).block();
+            if (moved == 0) {
+                // The lease was taken over meanwhile, the batch may be delivered again by the new holder.
+                LOGGER.warn("Lost the outbox lease, stopped publishing");
+                return;
+            }
+            reactiveMongoTemplate.remove(new Query(Criteria.where(OutboxConstants.ID).lte(new ObjectId(last.getId()))), OutboxEvent.class).block();
+            lastId = last.getId();
+            lastCreatedAt.set(last.getCreatedAt().getTime());
+            published.add(events.size());
+            batches.increment();
+            if (events.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes or renews the lease of the cursor, and reads the cursor in case the lease was taken.
+     * @return whether this node holds the lease.
+     */
+    private boolean lease() {
+        Date now = new Date();
+        Query query = new Query(Criteria.where(OutboxConstants.ID).is(CURSOR_ID).orOperator(
+                Criteria.where(OutboxConstants.OWNER).is(owner),
+                Criteria.where(OutboxConstants.OWNER).exists(false),
+                Criteria.where(OutboxConstants.LEASE_UNTIL).lt(now)));
+        Update update = new Update().set(OutboxConstants.OWNER, owner)
+                .set(OutboxConstants.LEASE_UNTIL, new Date(now.getTime() + leaseDuration));
+        OutboxCursor cursor;
+        try {
+            cursor = reactiveMongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().upsert(true).returnNew(true),
+                    OutboxCursor.class).block();
+        } catch (DuplicateKeyException e) {
+            // The cursor exists and another node holds the lease.
+            return false;
+        }
+        if (cursor == null) {
+            return false;
+        }
+        lastId = cursor.getLastId();
+        return true;
+    }
+}
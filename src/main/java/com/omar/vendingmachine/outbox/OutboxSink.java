@@ -0,0 +1,19 @@
+package com.omar.vendingmachine.outbox;
+
+import com.omar.vendingmachine.model.outbox.OutboxEvent;
+
+import java.util.List;
+
+/**
+ * Where the outbox events are delivered. The events may be delivered more than once, e.g. in case the publisher stops between
+ * the delivery and saving its cursor, so the receivers are expected to ignore the event ids they already got.
+ */
+public interface OutboxSink {
+
+    /**
+     * Delivers the batch of events, in order. The batch is delivered again in case this throws.
+     * @param events
+     * @throws Exception
+     */
+    void publish(List<OutboxEvent> events) throws Exception;
+}
@@ -0,0 +1,68 @@
+package com.omar.vendingmachine.pojo;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+import java.io.IOException;
+
+/**
+ * The coins returned to a buyer, held as the count of each coin denomination. It is written to JSON in a compact form
+ * mapping each returned denomination to its count, e.g. {"50":1,"20":2}.
+ */
+@JsonSerialize(using = Change.ChangeSerializer.class)
+public class Change {
+    private final int[] denominations;
+    private final String[] denominationNames;
+    private final int[] counts;
+
+    /**
+     * @param denominations the coin denominations, shared between all the change objects and never modified.
+     * @param denominationNames the decimal form of each denomination, shared the same way.
+     * @param counts the count of each denomination.
+     */
+    public Change(int[] denominations, String[] denominationNames, int[] counts) {
+        this.denominations = denominations;
+        this.denominationNames = denominationNames;
+        this.counts = counts;
+    }
+
+    public int size() {
+        return denominations.length;
+    }
+
+    public int getDenomination(int index) {
+        return denominations[index];
+    }
+
+    public int getCount(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Returns the total value of the change.
+     * @return
+     */
+    public int getAmount() {
+        int amount = 0;
+        for (int i = 0; i < denominations.length; i++) {
+            amount += denominations[i] * counts[i];
+        }
+        return amount;
+    }
+
+    public static class ChangeSerializer extends JsonSerializer<Change> {
+        @Override
+        public void serialize(Change change, JsonGenerator generator, SerializerProvider serializers) throws IOException {
+            generator.writeStartObject();
+            for (int i = 0; i < change.counts.length; i++) {
+                if (change.counts[i] > 0) {
+                    generator.writeFieldName(change.denominationNames[i]);
+                    generator.writeNumber(change.counts[i]);
+                }
+            }
+            generator.writeEndObject();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.List;
+
+/**
+ * A command sent by a machine over its WebSocket session, one of:
+ *  coin: deposits the amount.
+ *  coins: deposits the amounts at once.
+ *  buy: buys the product with the product id.
+ *  reset: resets the deposit.
+ */
+@Getter
+@Setter
+public class MachineCommand {
+
+    private String type;
+
+    private Integer amount;
+
+    private List<Integer> amounts;
+
+    private String productId;
+}
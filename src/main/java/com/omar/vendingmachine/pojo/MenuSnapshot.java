@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.pojo;
+
+import lombok.Getter;
+
+/**
+ * The menu of the machine already encoded as JSON and gzip, ready to be copied to the response.
+ */
+@Getter
+public class MenuSnapshot {
+    private final byte[] json;
+    private final byte[] gzip;
+    private final String etag;
+    private final long builtAt;
+    private volatile boolean stale;
+
+    public MenuSnapshot(byte[] json, byte[] gzip, String etag) {
+        this.json = json;
+        this.gzip = gzip;
+        this.etag = etag;
+        this.builtAt = System.currentTimeMillis();
+    }
+
+    public void markStale() {
+        stale = true;
+    }
+}
@@ -0,0 +1,20 @@
+package com.omar.vendingmachine.pojo;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The result of one item of a batch of products, in the order of the items in the batch.
+ */
+@Getter
+@AllArgsConstructor
+public class ProductBatchResult {
+
+    private int index;
+
+    private String id;
+
+    private boolean success;
+
+    private String message;
+}
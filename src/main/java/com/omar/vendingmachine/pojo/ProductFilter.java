@@ -0,0 +1,20 @@
+package com.omar.vendingmachine.pojo;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Filter of the product listings, the deleted products are never listed. The filters that are null or false are not applied.
+ */
+@Getter
+@Setter
+public class ProductFilter {
+
+    private Integer minCost;
+
+    private Integer maxCost;
+
+    private boolean inStock;
+
+    private String sellerUserName;
+}
@@ -16,4 +16,9 @@ public class ProductPojo {
     private Integer cost;
 
     private String sellerUserName;
+
+    /**
+     * The version of the product the update is based on, in case it is set the update fails when the product has changed since.
+     */
+    private Long version;
 }
@@ -0,0 +1,11 @@
+package com.omar.vendingmachine.repository;
+
+import com.omar.vendingmachine.model.user.CredentialChange;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+public interface CredentialChangeRepository extends ReactiveMongoRepository<CredentialChange, String> {
+    Mono<Long> deleteByChangedAtBefore(Date date);
+}
@@ -0,0 +1,11 @@
+package com.omar.vendingmachine.repository;
+
+import com.omar.vendingmachine.model.user.TokenRevocation;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Mono;
+
+import java.util.Date;
+
+public interface TokenRevocationRepository extends ReactiveMongoRepository<TokenRevocation, String> {
+    Mono<Long> deleteByRevokedBeforeLessThan(Date date);
+}
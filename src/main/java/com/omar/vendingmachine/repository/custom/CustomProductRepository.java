@@ -0,0 +1,44 @@
+package com.omar.vendingmachine.repository.custom;
+
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.ProductFilter;
+import com.omar.vendingmachine.pojo.ProductPojo;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public interface CustomProductRepository {
+    Mono<Product> findById(String id);
+
+    Mono<Product> decrementStock(String id);
+
+    Mono<Product> incrementStock(String id, int amount);
+
+    Mono<Product> claimStock(String id, int amount, String claimId, String previousClaimId);
+
+    Mono<Product> returnStock(String id, String claimId, int amount);
+
+    Mono<Map<String, Set<String>>> findClaims(Collection<String> ids);
+
+    Mono<Boolean> hasClaim(String id, String claimId);
+
+    Mono<Product> updateVersioned(String id, long version, Update update);
+
+    Mono<Long> initVersions();
+
+    Flux<Product> findCatalog(String after, int limit, boolean includeDeleted);
+
+    Flux<Product> findFiltered(ProductFilter filter, int limit);
+
+    Flux<Product> findOwned(Collection<String> ids, String sellerUserName);
+
+    Mono<Map<Integer, String>> bulkInsert(List<Product> products);
+
+    Mono<Map<Integer, String>> bulkUpdate(List<ProductPojo> products, List<Document> restocks, String sellerUserName);
+}
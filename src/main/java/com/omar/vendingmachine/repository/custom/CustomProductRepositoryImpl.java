@@ -0,0 +1,380 @@
+package com.omar.vendingmachine.repository.custom;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.ProductFilter;
+import com.omar.vendingmachine.pojo.ProductPojo;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.omar.vendingmachine.constants.OutboxConstants.PENDING_EVENTS;
+import static com.omar.vendingmachine.constants.ProductConstants.ALLOTMENTS;
+import static com.omar.vendingmachine.constants.ProductConstants.AMOUNT_AVAILLABLE;
+import static com.omar.vendingmachine.constants.ProductConstants.COST;
+import static com.omar.vendingmachine.constants.ProductConstants.DELETED;
+import static com.omar.vendingmachine.constants.ProductConstants.ID;
+import static com.omar.vendingmachine.constants.ProductConstants.PRODUCT_NAME;
+import static com.omar.vendingmachine.constants.ProductConstants.SELLER_USER_NAME;
+import static com.omar.vendingmachine.constants.ProductConstants.VERSION;
+
+@Component
+public class CustomProductRepositoryImpl implements CustomProductRepository {
+    private static final String LAST_BATCH = "lastBatch";
+    private static final String QUANTITY = "quantity";
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    @Autowired
+    public CustomProductRepositoryImpl(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public Mono<Product> findById(String id) {
+        return mongoTemplate.findById(id, Product.class);
+    }
+
+    /**
+     * Atomically takes one item out of stock. The product is only matched when it is not deleted and still has stock,
+     * so concurrent buyers can never take the amount availlable below 0.
+     * @param id
+     * @return the product after the decrement, or empty in case the product is missing, deleted or out of stock.
+     */
+    @Override
+    public Mono<Product> decrementStock(String id) {
+        Query query = new Query(Criteria.where(ID).is(id).and(DELETED).is(false).and(AMOUNT_AVAILLABLE).gt(0));
+        Update update = new Update().inc(AMOUNT_AVAILLABLE, -1).inc(VERSION, 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    /**
+     * Atomically puts the amount back to the stock of the product, used to compensate a purchase that could not be completed.
+     * @param id
+     * @param amount
+     * @return the product after the increment, or empty in case the product does not exist.
+     */
+    @Override
+    public Mono<Product> incrementStock(String id, int amount) {
+        Query query = new Query(Criteria.where(ID).is(id));
+        Update update = new Update().inc(AMOUNT_AVAILLABLE, amount).inc(VERSION, 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    /**
+     * Atomically takes the amount out of the stock of the product at once. The product is only matched when it is not deleted
+     * and has at least the amount in stock, so the claimed items can be sold later without touching the database. The claim is
+     * recorded in the product, so a later change of the stock by the seller can supersede it, see {@link #returnStock}.
+     * @param id
+     * @param amount
+     * @param claimId the id of the claim.
+     * @param previousClaimId the id of the previous claim of the same allotment, which is sold out and dropped, or null.
+     * @return the product after the claim, or empty in case the product is missing, deleted or has less than the amount in stock.
+     */
+    @Override
+    public Mono<Product> claimStock(String id, int amount, String claimId, String previousClaimId) {
+        Query query = new Query(Criteria.where(ID).is(id).and(DELETED).is(false).and(AMOUNT_AVAILLABLE).gte(amount));
+        Update update = new Update().inc(AMOUNT_AVAILLABLE, -amount).set(claimField(claimId), amount).inc(VERSION, 1);
+        if (previousClaimId != null) {
+            update.unset(claimField(previousClaimId));
+        }
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    /**
+     * Atomically puts the unsold items of a claim back to the stock of the product and drops the claim. Nothing is put back in
+     * case the claim was superseded meanwhile, i.e. the seller set the stock or deleted the product, as the stock set by the
+     * seller already is the whole stock.
+     * @param id
+     * @param claimId
+     * @param amount
+     * @return the product after the return, or empty in case the claim was superseded.
+     */
+    @Override
+    public Mono<Product> returnStock(String id, String claimId, int amount) {
+        Query query = new Query(Criteria.where(ID).is(id).and(claimField(claimId)).exists(true));
+        Update update = new Update().inc(AMOUNT_AVAILLABLE, amount).unset(claimField(claimId)).inc(VERSION, 1);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    /**
+     * Finds the claims that are still recorded in the products with the input ids, in one query.
+     * @param ids
+     * @return the ids of the claims by product id, the products that are missing or deleted have no claims.
+     */
+    @Override
+    public Mono<Map<String, Set<String>>> findClaims(Collection<String> ids) {
+        Query query = new Query(Criteria.where(ID).in(ids).and(DELETED).is(false));
+        query.fields().include(ALLOTMENTS);
+        return mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(Product.class))
+                .collectMap(document -> document.get("_id").toString(), document -> {
+                    Document claims = document.get(ALLOTMENTS, Document.class);
+                    return claims == null ? Collections.<String>emptySet() : new HashSet<>(claims.keySet());
+                });
+    }
+
+    /**
+     * Checks whether the claim is still recorded in the product, i.e. its items can still be sold.
+     * @param id
+     * @param claimId
+     * @return false in case the claim was superseded or the product is missing or deleted.
+     */
+    @Override
+    public Mono<Boolean> hasClaim(String id, String claimId) {
+        Query query = new Query(Criteria.where(ID).is(id).and(DELETED).is(false).and(claimField(claimId)).exists(true));
+        return mongoTemplate.exists(query, Product.class);
+    }
+
+    /**
+     * Applies the update to the product only in case it is still at the expected version, increasing the version. Only the
+     * fields in the update are written.
+     * @param id
+     * @param version the version the update is based on.
+     * @param update
+     * @return the product after the update, or empty in case the product does not exist or is not at the expected version.
+     */
+    @Override
+    public Mono<Product> updateVersioned(String id, long version, Update update) {
+        Query query = new Query(Criteria.where(ID).is(id).and(VERSION).is(version));
+        return mongoTemplate.findAndModify(query, update.inc(VERSION, 1), FindAndModifyOptions.options().returnNew(true), Product.class);
+    }
+
+    /**
+     * Sets the version of the products saved before the products were versioned to 0.
+     * @return the number of products changed.
+     */
+    @Override
+    public Mono<Long> initVersions() {
+        Query query = new Query(Criteria.where(VERSION).exists(false));
+        return mongoTemplate.updateMulti(query, new Update().set(VERSION, 0L), Product.class).map(UpdateResult::getModifiedCount);
+    }
+
+    /**
+     * Lists the products in the order of their ids, starting after the input id. The page starts with a seek on the id index
+     * instead of skipping the products of the previous pages, so every page costs the same however deep it is.
+     * @param after the id of the last product of the previous page, or null for the first page.
+     * @param limit the maximum number of products, or 0 for all the products after the input id.
+     * @param includeDeleted whether the soft-deleted products are listed.
+     * @return
+     */
+    @Override
+    public Flux<Product> findCatalog(String after, int limit, boolean includeDeleted) {
+        Query query = new Query().with(Sort.by(Sort.Direction.ASC, ID));
+        if (after != null) {
+            query.addCriteria(Criteria.where(ID).gt(after));
+        }
+        if (!includeDeleted) {
+            query.addCriteria(Criteria.where(DELETED).is(false));
+        }
+        if (limit > 0) {
+            query.limit(limit);
+        }
+        return mongoTemplate.find(query, Product.class);
+    }
+
+    /**
+     * Lists the products that are not deleted and match the filter, from the cheapest.
+     * @param filter
+     * @param limit the maximum number of products.
+     * @return
+     */
+    @Override
+    public Flux<Product> findFiltered(ProductFilter filter, int limit) {
+        return mongoTemplate.find(filterQuery(filter).limit(limit), Product.class);
+    }
+
+    /**
+     * Builds the query of the filter in the order of the fields of the product indexes.
+     */
+    static Query filterQuery(ProductFilter filter) {
+        Query query = new Query().with(Sort.by(Sort.Direction.ASC, COST));
+        if (filter.getSellerUserName() != null) {
+            query.addCriteria(Criteria.where(SELLER_USER_NAME).is(filter.getSellerUserName()));
+        }
+        query.addCriteria(Criteria.where(DELETED).is(false));
+        if (filter.getMinCost() != null || filter.getMaxCost() != null) {
+            Criteria cost = Criteria.where(COST);
+            if (filter.getMinCost() != null) {
+                cost.gte(filter.getMinCost());
+            }
+            if (filter.getMaxCost() != null) {
+                cost.lte(filter.getMaxCost());
+            }
+            query.addCriteria(cost);
+        }
+        if (filter.isInStock()) {
+            query.addCriteria(Criteria.where(AMOUNT_AVAILLABLE).gt(0));
+        }
+        return query;
+    }
+
+    /**
+     * Finds the products with the input ids that belong to the seller, in one query.
+     * @param ids
+     * @param sellerUserName
+     * @return
+     */
+    @Override
+    public Flux<Product> findOwned(Collection<String> ids, String sellerUserName) {
+        Query query = new Query(Criteria.where(ID).in(ids).and(SELLER_USER_NAME).is(sellerUserName));
+        return mongoTemplate.find(query, Product.class);
+    }
+
+    /**
+     * Inserts the products with one unordered bulk write, so a failing product does not stop the others. The products are
+     * expected to be valid and to have their ids assigned already.
+     * @param products
+     * @return the error of each product that could not be inserted by its index in the input list.
+     */
+    @Override
+    public Mono<Map<Integer, String>> bulkInsert(List<Product> products) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Product product : products) {
+            Document document = new Document();
+            mongoTemplate.getConverter().write(product, document);
+            writes.add(new InsertOneModel<>(document));
+        }
+        return bulkWrite(writes);
+    }
+
+    /**
+     * Sets the fields that are not null of each product with one unordered bulk write. Each product is only matched when it
+     * belongs to the seller and, in case it holds the version it is based on, is still at that version. Only the changed fields
+     * are written. Setting the stock supersedes the claims of the product, and in case the stock is increased, the restock is
+     * recorded in the pending events of the product by the same write, with the quantity taken from the stock it replaces.
+     * @param products
+     * @param restocks the restock of each product, without the quantity, the cost and the stock, or null for the products
+     *                 whose stock is not set.
+     * @param sellerUserName
+     * @return the error of each product that could not be updated by its index in the input list.
+     */
+    @Override
+    public Mono<Map<Integer, String>> bulkUpdate(List<ProductPojo> products, List<Document> restocks, String sellerUserName) {
+        // Every product written by this batch is marked with the id of the batch, so the products that were not matched
+        // because of their version can be told apart.
+        String batchId = new ObjectId().toHexString();
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (int i = 0; i < products.size(); i++) {
+            ProductPojo product = products.get(i);
+            Document filter = new Document("_id", new ObjectId(product.getId())).append(SELLER_USER_NAME, sellerUserName);
+            if (product.getVersion() != null) {
+                filter.append(VERSION, product.getVersion());
+            }
+            if (product.getAmountAvaillable() != null) {
+                writes.add(new UpdateOneModel<>(filter, stockPipeline(product, restocks.get(i), batchId)));
+                continue;
+            }
+            Update update = new Update();
+            if (product.getProductName() != null) {
+                update.set(PRODUCT_NAME, product.getProductName());
+            }
+            if (product.getCost() != null) {
+                update.set(COST, product.getCost());
+            }
+            update.set(LAST_BATCH, batchId).inc(VERSION, 1);
+            writes.add(new UpdateOneModel<>(filter, update.getUpdateObject()));
+        }
+        return bulkWrite(writes).flatMap(errors -> {
+            List<String> versioned = new ArrayList<>();
+            for (ProductPojo product : products) {
+                if (product.getVersion() != null) {
+                    versioned.add(product.getId());
+                }
+            }
+            if (versioned.isEmpty()) {
+                return Mono.just(errors);
+            }
+            Query written = new Query(Criteria.where(ID).in(versioned).and(LAST_BATCH).is(batchId));
+            written.fields().include(ID);
+            return mongoTemplate.find(written, Document.class, mongoTemplate.getCollectionName(Product.class))
+                    .map(document -> document.get("_id").toString())
+                    .collect(HashSet<String>::new, Set::add)
+                    .map(writtenIds -> {
+                        Map<Integer, String> conflicts = new HashMap<>(errors);
+                        for (int i = 0; i < products.size(); i++) {
+                            ProductPojo product = products.get(i);
+                            if (product.getVersion() != null && !conflicts.containsKey(i) && !writtenIds.contains(product.getId())) {
+                                conflicts.put(i, String.format("Product %s was changed meanwhile, please try again", product.getId()));
+                            }
+                        }
+                        return conflicts;
+                    });
+        });
+    }
+
+    /**
+     * Builds the update of a product whose stock is set, as a pipeline, so the restock recorded with it is computed from the
+     * stock it replaces.
+     */
+    private static List<Document> stockPipeline(ProductPojo product, Document restock, String batchId) {
+        int amount = product.getAmountAvaillable();
+        Document set = new Document();
+        if (product.getProductName() != null) {
+            set.append(PRODUCT_NAME, new Document("$literal", product.getProductName()));
+        }
+        set.append(AMOUNT_AVAILLABLE, amount);
+        if (product.getCost() != null) {
+            set.append(COST, product.getCost());
+        }
+        set.append(LAST_BATCH, new Document("$literal", batchId));
+        set.append(VERSION, new Document("$add", Arrays.asList(new Document("$ifNull", Arrays.asList("$" + VERSION, 0L)), 1L)));
+        if (restock != null) {
+            Document event = new Document("$mergeObjects", Arrays.asList(new Document("$literal", restock),
+                    new Document(QUANTITY, new Document("$subtract", Arrays.asList(amount, "$" + AMOUNT_AVAILLABLE)))
+                            .append(COST, product.getCost() != null ? product.getCost() : "$" + COST)
+                            .append(AMOUNT_AVAILLABLE, amount)));
+            Document pending = new Document("$ifNull", Arrays.asList("$" + PENDING_EVENTS, Collections.emptyList()));
+            set.append(PENDING_EVENTS, new Document("$cond", Arrays.asList(
+                    new Document("$gt", Arrays.asList(amount, "$" + AMOUNT_AVAILLABLE)),
+                    new Document("$concatArrays", Arrays.asList(pending, Collections.singletonList(event))),
+                    "$" + PENDING_EVENTS)));
+        }
+        // The stock set by the seller is the whole stock, it supersedes the items claimed by the nodes.
+        return Arrays.asList(new Document("$set", set), new Document("$unset", ALLOTMENTS));
+    }
+
+    private static String claimField(String claimId) {
+        return ALLOTMENTS + "." + claimId;
+    }
+
+    private Mono<Map<Integer, String>> bulkWrite(List<WriteModel<Document>> writes) {
+        if (writes.isEmpty()) {
+            return Mono.just(Collections.emptyMap());
+        }
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Product.class))
+                .flatMap(collection -> Mono.from(collection.bulkWrite(writes, new BulkWriteOptions().ordered(false))))
+                .map(result -> Collections.<Integer, String>emptyMap())
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    Map<Integer, String> errors = new HashMap<>();
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        errors.put(error.getIndex(), error.getMessage());
+                    }
+                    return Mono.just(errors);
+                });
+    }
+}
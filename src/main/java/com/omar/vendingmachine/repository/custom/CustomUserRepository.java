@@ -1,8 +1,23 @@
 package com.omar.vendingmachine.repository.custom;
 
+import com.omar.vendingmachine.model.user.Role;
 import com.omar.vendingmachine.model.user.User;
+import org.bson.Document;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
 
 public interface CustomUserRepository {
     Flux<User> findByUsername(String username);
+
+    Mono<User> debitDeposit(String username, int amount, Document purchase);
+
+    Mono<User> refundDeposit(String username, int amount, String purchaseId);
+
+    Mono<User> creditDeposit(String username, int amount);
+
+    Mono<User> resetDeposit(String username);
+
+    Mono<Long> embedRoles(Map<String, Role> rolesById);
 }
@@ -1,13 +1,25 @@
 package com.omar.vendingmachine.repository.custom;
 
+import com.omar.vendingmachine.constants.OutboxConstants;
 import com.omar.vendingmachine.constants.UserContants;
+import com.mongodb.DBRef;
+import com.omar.vendingmachine.model.user.Role;
 import com.omar.vendingmachine.model.user.User;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @Component
 public class CustomUserRepositoryImpl implements CustomUserRepository {
@@ -23,4 +35,90 @@ public class CustomUserRepositoryImpl implements CustomUserRepository {
         Query query = new Query(Criteria.where(UserContants.USERNAME).is(username));
         return mongoTemplate.find(query, User.class);
     }
+
+    /**
+     * Atomically takes the whole deposit of the user in case it covers the amount. The match on the deposit makes sure
+     * that two concurrent purchases can not spend the same deposit. The purchase is recorded in the pending events of the
+     * user by the same write, so it is delivered to the outbox if and only if the deposit is taken.
+     * @param username
+     * @param amount
+     * @param purchase the purchase event, as recorded in the pending events.
+     * @return the user with the deposit as it was before the debit (only the deposit is loaded), or empty in case the
+     * deposit does not cover the amount.
+     */
+    @Override
+    public Mono<User> debitDeposit(String username, int amount, Document purchase) {
+        Query query = new Query(Criteria.where(UserContants.USERNAME).is(username).and(UserContants.DEPOSIT).gte(amount));
+        query.fields().include(UserContants.DEPOSIT);
+        Update update = new Update().set(UserContants.DEPOSIT, 0).push(OutboxConstants.PENDING_EVENTS, purchase);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(false), User.class);
+    }
+
+    /**
+     * Atomically gives back the deposit taken by a purchase that could not be completed, and drops the purchase from the
+     * pending events of the user by the same write.
+     * @param username
+     * @param amount
+     * @param purchaseId the id the purchase was recorded with.
+     * @return the user with the deposit after the refund (only the deposit is loaded).
+     */
+    @Override
+    public Mono<User> refundDeposit(String username, int amount, String purchaseId) {
+        Query query = new Query(Criteria.where(UserContants.USERNAME).is(username));
+        query.fields().include(UserContants.DEPOSIT);
+        Update update = new Update().inc(UserContants.DEPOSIT, amount)
+                .pull(OutboxConstants.PENDING_EVENTS, new Document(OutboxConstants.SOURCE_ID, purchaseId));
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), User.class);
+    }
+
+    /**
+     * Atomically adds the amount to the deposit of the user, used for the coins inserted by the user.
+     * @param username
+     * @param amount
+     * @return the user with the deposit after the credit (only the deposit is loaded).
+     */
+    @Override
+    public Mono<User> creditDeposit(String username, int amount) {
+        Query query = new Query(Criteria.where(UserContants.USERNAME).is(username));
+        query.fields().include(UserContants.DEPOSIT);
+        Update update = new Update().inc(UserContants.DEPOSIT, amount);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(true), User.class);
+    }
+
+    /**
+     * Atomically sets the deposit of the user to 0.
+     * @param username
+     * @return the user with the deposit as it was before the reset (only the deposit is loaded).
+     */
+    @Override
+    public Mono<User> resetDeposit(String username) {
+        Query query = new Query(Criteria.where(UserContants.USERNAME).is(username));
+        query.fields().include(UserContants.DEPOSIT);
+        Update update = new Update().set(UserContants.DEPOSIT, 0);
+        return mongoTemplate.findAndModify(query, update, FindAndModifyOptions.options().returnNew(false), User.class);
+    }
+
+    /**
+     * Replaces the role references of the users saved before the roles were embedded with the roles themselves. The references
+     * to roles that do not exist anymore are dropped.
+     * @param rolesById
+     * @return the number of users migrated.
+     */
+    @Override
+    public Mono<Long> embedRoles(Map<String, Role> rolesById) {
+        Query query = new Query(Criteria.where(UserContants.ROLES + ".$ref").exists(true));
+        return mongoTemplate.find(query, Document.class, mongoTemplate.getCollectionName(User.class))
+                .flatMap(user -> {
+                    Set<Role> roles = new HashSet<>();
+                    for (DBRef reference : user.getList(UserContants.ROLES, DBRef.class)) {
+                        Role role = rolesById.get(reference.getId().toString());
+                        if (role != null) {
+                            roles.add(role);
+                        }
+                    }
+                    return mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(user.get("_id"))),
+                            new Update().set(UserContants.ROLES, roles), User.class);
+                })
+                .count();
+    }
 }
@@ -0,0 +1,51 @@
+package com.omar.vendingmachine.security;
+
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.service.TokenRevocationService;
+import io.jsonwebtoken.Claims;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Authenticates the requests that bear a token issued by /user/login from the token alone. Requests without a token, or with an
+ * invalid, expired or revoked one, are left unauthenticated for the next filters.
+ */
+public class JwtAuthenticationFilter extends OncePerRequestFilter {
+    private static final String BEARER_PREFIX = UserContants.BEARER + " ";
+
+    private final JwtTokenProvider jwtTokenProvider;
+    private final TokenRevocationService tokenRevocationService;
+
+    public JwtAuthenticationFilter(JwtTokenProvider jwtTokenProvider, TokenRevocationService tokenRevocationService) {
+        this.jwtTokenProvider = jwtTokenProvider;
+        this.tokenRevocationService = tokenRevocationService;
+    }
+
+    /**
+     * Also runs on the dispatch of asynchronous results, as the token authentication is not kept in the session.
+     */
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String header = request.getHeader(HttpHeaders.AUTHORIZATION);
+        if (header != null && header.startsWith(BEARER_PREFIX)) {
+            Claims claims = jwtTokenProvider.parse(header.substring(BEARER_PREFIX.length()));
+            if (claims != null && !tokenRevocationService.isRevoked(claims.getSubject(), jwtTokenProvider.getIssuedAt(claims))) {
+                SecurityContextHolder.getContext().setAuthentication(jwtTokenProvider.getAuthentication(claims));
+            }
+        }
+        filterChain.doFilter(request, response);
+    }
+}
@@ -0,0 +1,18 @@
+package com.omar.vendingmachine.security;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.Transient;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.Collection;
+
+/**
+ * Authentication built from a signed token. It is transient, so authenticating with a token never creates or updates a session.
+ */
+@Transient
+public class JwtAuthenticationToken extends UsernamePasswordAuthenticationToken {
+    public JwtAuthenticationToken(UserDetails principal, Collection<? extends GrantedAuthority> authorities) {
+        super(principal, null, authorities);
+    }
+}
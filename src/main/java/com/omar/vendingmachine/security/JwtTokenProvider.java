@@ -0,0 +1,113 @@
+package com.omar.vendingmachine.security;
+
+import com.omar.vendingmachine.constants.UserContants;
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+/**
+ * Issues and verifies the signed tokens that carry the username and the roles of a user, so a request bearing a token is
+ * authorized without loading the user or verifying the password.
+ */
+@Component
+public class JwtTokenProvider {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JwtTokenProvider.class);
+
+    @Value("${vending.jwt.secret:}")
+    private String secret;
+
+    @Value("${vending.jwt.expiration-ms:3600000}")
+    private long expiration;
+
+    private byte[] key;
+
+    @PostConstruct
+    public void init() {
+        if (StringUtils.isBlank(secret)) {
+            LOGGER.warn("vending.jwt.secret is not set, the issued tokens are only valid on this node until it restarts");
+            key = new byte[32];
+            new SecureRandom().nextBytes(key);
+        } else {
+            key = secret.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Issues a token for the authenticated user.
+     * @param authentication
+     * @return
+     */
+    public String createToken(Authentication authentication) {
+        Date now = new Date();
+        String roles = authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority)
+                .collect(Collectors.joining(","));
+        return Jwts.builder()
+                .setId(UUID.randomUUID().toString())
+                .setSubject(authentication.getName())
+                .claim(UserContants.ROLES_CLAIM, roles)
+                .claim(UserContants.ISSUED_AT_MS_CLAIM, now.getTime())
+                .setIssuedAt(now)
+                .setExpiration(new Date(now.getTime() + expiration))
+                .signWith(SignatureAlgorithm.HS256, key)
+                .compact();
+    }
+
+    /**
+     * Verifies the signature and the expiration of the token and returns its claims.
+     * @param token
+     * @return the claims, or null in case the token is not valid.
+     */
+    public Claims parse(String token) {
+        try {
+            return Jwts.parser().setSigningKey(key).parseClaimsJws(token).getBody();
+        } catch (JwtException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the time the token was issued at, to the millisecond. The standard issued at claim only keeps the seconds, so a
+     * token issued right after a revocation would look issued before it.
+     * @param claims
+     * @return
+     */
+    public Date getIssuedAt(Claims claims) {
+        Long issuedAt = claims.get(UserContants.ISSUED_AT_MS_CLAIM, Long.class);
+        return issuedAt == null ? claims.getIssuedAt() : new Date(issuedAt);
+    }
+
+    /**
+     * Builds the authentication of the user the token was issued to.
+     * @param claims
+     * @return
+     */
+    public JwtAuthenticationToken getAuthentication(Claims claims) {
+        List<GrantedAuthority> authorities = AuthorityUtils.commaSeparatedStringToAuthorityList(
+                claims.get(UserContants.ROLES_CLAIM, String.class));
+        User principal = new User(claims.getSubject(), "", authorities);
+        return new JwtAuthenticationToken(principal, authorities);
+    }
+}
@@ -0,0 +1,228 @@
+package com.omar.vendingmachine.security;
+
+import com.mongodb.client.model.changestream.OperationType;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.model.user.UserSession;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.session.SessionDestroyedEvent;
+import org.springframework.security.core.session.SessionInformation;
+import org.springframework.security.core.session.SessionRegistry;
+import org.springframework.security.core.userdetails.UserDetails;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Session registry shared by all the nodes through the user_session collection, so the sessions of a user can be listed, limited
+ * and expired from any node. The sessions used on this node are kept in a near-cache, so the session check made on every request
+ * does not query the database. The near-cache is kept fresh by the change stream of the collection, or by polling in case the
+ * database does not support change streams. The last request times are written to the database in batches.
+ */
+public class MongoSessionRegistry implements SessionRegistry, ApplicationListener<SessionDestroyedEvent> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoSessionRegistry.class);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final Map<String, CachedSessionInformation> sessions = new ConcurrentHashMap<>();
+    private final Set<String> refreshedSessions = ConcurrentHashMap.newKeySet();
+    private volatile Disposable changeStream;
+    private volatile boolean changeStreamActive;
+
+    public MongoSessionRegistry(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * Starts listening to the changes made to the sessions by the other nodes.
+     */
+    @PostConstruct
+    public void listen() {
+        changeStreamActive = true;
+        changeStream = mongoTemplate.changeStream(mongoTemplate.getCollectionName(UserSession.class),
+                        ChangeStreamOptions.builder().returnFullDocumentOnUpdate().build(), Document.class)
+                .subscribe(this::onChange, error -> {
+                    changeStreamActive = false;
+                    LOGGER.warn("Session change stream is not available, polling the sessions instead: {}", error.getMessage());
+                });
+    }
+
+    @PreDestroy
+    public void close() {
+        flushLastRequests();
+        if (changeStream != null) {
+            changeStream.dispose();
+        }
+    }
+
+    @Override
+    public List<Object> getAllPrincipals() {
+        return mongoTemplate.findDistinct(new Query(Criteria.where(UserContants.EXPIRED).is(false)), UserContants.PRINCIPAL,
+                UserSession.class, String.class).collectList().<List<Object>>map(ArrayList::new).block();
+    }
+
+    /**
+     * Lists the sessions of the principal on all the nodes. This is only used on login and logout, so it reads the database.
+     */
+    @Override
+    public List<SessionInformation> getAllSessions(Object principal, boolean includeExpiredSessions) {
+        Query query = new Query(Criteria.where(UserContants.PRINCIPAL).is(nameOf(principal)));
+        if (!includeExpiredSessions) {
+            query.addCriteria(Criteria.where(UserContants.EXPIRED).is(false));
+        }
+        return mongoTemplate.find(query, UserSession.class)
+                .map(this::cache)
+                .filter(session -> includeExpiredSessions || !session.isExpired())
+                .<SessionInformation>map(session -> session)
+                .collectList()
+                .block();
+    }
+
+    @Override
+    public SessionInformation getSessionInformation(String sessionId) {
+        CachedSessionInformation session = sessions.get(sessionId);
+        if (session != null) {
+            return session;
+        }
+        // A session created on another node.
+        UserSession stored = mongoTemplate.findById(sessionId, UserSession.class).block();
+        return stored == null ? null : cache(stored);
+    }
+
+    @Override
+    public void refreshLastRequest(String sessionId) {
+        SessionInformation session = getSessionInformation(sessionId);
+        if (session != null) {
+            session.refreshLastRequest();
+            refreshedSessions.add(sessionId);
+        }
+    }
+
+    @Override
+    public void registerNewSession(String sessionId, Object principal) {
+        UserSession session = new UserSession(sessionId, nameOf(principal), new Date(), false);
+        mongoTemplate.save(session).block();
+        cache(session);
+    }
+
+    @Override
+    public void removeSessionInformation(String sessionId) {
+        sessions.remove(sessionId);
+        refreshedSessions.remove(sessionId);
+        mongoTemplate.remove(new Query(Criteria.where(UserContants.SESSION_ID).is(sessionId)), UserSession.class).block();
+    }
+
+    @Override
+    public void onApplicationEvent(SessionDestroyedEvent event) {
+        removeSessionInformation(event.getId());
+    }
+
+    /**
+     * Writes the last request times of the sessions used since the last flush, in one batch.
+     */
+    @Scheduled(fixedDelayString = "${vending.session.flush-ms:10000}")
+    public void flushLastRequests() {
+        List<String> refreshed = new ArrayList<>(refreshedSessions);
+        refreshedSessions.removeAll(refreshed);
+        Flux.fromIterable(refreshed)
+                .mapNotNull(sessions::get)
+                .flatMap(session -> mongoTemplate.updateFirst(
+                        new Query(Criteria.where(UserContants.SESSION_ID).is(session.getSessionId())),
+                        new Update().set(UserContants.LAST_REQUEST, session.getLastRequest()),
+                        UserSession.class))
+                .blockLast();
+    }
+
+    /**
+     * Refreshes the near-cache from the database in case the change stream is not available.
+     */
+    @Scheduled(fixedDelayString = "${vending.session.poll-ms:5000}")
+    public void poll() {
+        if (changeStreamActive || sessions.isEmpty()) {
+            return;
+        }
+        Set<String> cached = new HashSet<>(sessions.keySet());
+        Map<String, UserSession> stored = mongoTemplate.find(new Query(Criteria.where(UserContants.SESSION_ID).in(cached)), UserSession.class)
+                .collectMap(UserSession::getSessionId)
+                .block();
+        for (String sessionId : cached) {
+            UserSession session = stored.get(sessionId);
+            CachedSessionInformation cachedSession = sessions.get(sessionId);
+            if (session == null) {
+                sessions.remove(sessionId);
+            } else if (session.isExpired() && cachedSession != null) {
+                cachedSession.expireLocally();
+            }
+        }
+    }
+
+    private void onChange(ChangeStreamEvent<Document> event) {
+        String sessionId = event.getRaw().getDocumentKey().get("_id").asString().getValue();
+        if (event.getOperationType() == OperationType.DELETE) {
+            sessions.remove(sessionId);
+            return;
+        }
+        Document body = event.getBody();
+        CachedSessionInformation session = sessions.get(sessionId);
+        if (session != null && body != null && Boolean.TRUE.equals(body.getBoolean(UserContants.EXPIRED))) {
+            session.expireLocally();
+        }
+    }
+
+    private CachedSessionInformation cache(UserSession stored) {
+        CachedSessionInformation session = sessions.computeIfAbsent(stored.getSessionId(),
+                id -> new CachedSessionInformation(stored.getPrincipal(), id, stored.getLastRequest()));
+        if (stored.isExpired()) {
+            session.expireLocally();
+        }
+        return session;
+    }
+
+    private static String nameOf(Object principal) {
+        if (principal instanceof UserDetails) {
+            return ((UserDetails) principal).getUsername();
+        }
+        if (principal instanceof Principal) {
+            return ((Principal) principal).getName();
+        }
+        return principal.toString();
+    }
+
+    /**
+     * Session information that expires the session on all the nodes when it is expired.
+     */
+    private class CachedSessionInformation extends SessionInformation {
+        CachedSessionInformation(String principal, String sessionId, Date lastRequest) {
+            super(principal, sessionId, lastRequest);
+        }
+
+        @Override
+        public void expireNow() {
+            super.expireNow();
+            mongoTemplate.updateFirst(new Query(Criteria.where(UserContants.SESSION_ID).is(getSessionId())),
+                    new Update().set(UserContants.EXPIRED, true), UserSession.class).block();
+        }
+
+        void expireLocally() {
+            super.expireNow();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.omar.vendingmachine.security;
+
+import com.omar.vendingmachine.cache.BoundedCache;
+import com.omar.vendingmachine.model.user.CredentialChange;
+import com.omar.vendingmachine.repository.CredentialChangeRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the credentials that were already verified, so a repeat caller using HTTP Basic is authenticated with a hash lookup
+ * instead of a user lookup and a BCrypt verification. The credentials are never kept, entries are keyed by a HMAC of the
+ * username and the password under a key generated at startup. A change of the password or the roles of a user is recorded in
+ * the database and the changes are reloaded periodically, so every node forgets the credentials of the user, at the latest one
+ * refresh interval after the change. The changes older than the time to live are pruned, their entries are expired already.
+ */
+@Component
+public class VerifiedCredentialCache {
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    @Value("${vending.auth.cache.max-size:10000}")
+    private int maxSize;
+
+    @Value("${vending.auth.cache.ttl-ms:300000}")
+    private long ttl;
+
+    @Autowired
+    CredentialChangeRepository credentialChangeRepository;
+
+    private SecretKeySpec key;
+    private BoundedCache<String, UserDetails> cache;
+    private volatile Map<String, Long> changedAt = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        cache = new BoundedCache<>(maxSize, ttl);
+        reload();
+    }
+
+    /**
+     * Loads the credential changes from the database and forgets the credentials of the users changed since the last reload,
+     * on this node or on another one.
+     */
+    @Scheduled(fixedDelayString = "${vending.auth.cache.refresh-ms:5000}")
+    public void reload() {
+        credentialChangeRepository.deleteByChangedAtBefore(new Date(System.currentTimeMillis() - ttl)).block();
+        Map<String, Long> loaded = new ConcurrentHashMap<>();
+        credentialChangeRepository.findAll()
+                .doOnNext(change -> loaded.put(change.getUsername(), change.getChangedAt().getTime()))
+                .blockLast();
+        Map<String, Long> previous = changedAt;
+        changedAt = loaded;
+        loaded.forEach((username, time) -> {
+            Long known = previous.get(username);
+            if (known == null || known < time) {
+                forget(username);
+            }
+        });
+    }
+
+    /**
+     * Returns the user already verified with the input credentials.
+     * @param username
+     * @param password
+     * @return the user, or null in case the credentials were not verified lately.
+     */
+    public UserDetails get(String username, String password) {
+        return cache.get(digest(username, password));
+    }
+
+    /**
+     * Remembers that the input credentials were verified for the user.
+     * @param username
+     * @param password
+     * @param user
+     */
+    public void put(String username, String password, UserDetails user) {
+        cache.put(digest(username, password), user);
+    }
+
+    /**
+     * Forgets all the verified credentials of the user with the input username on all the nodes, to be called whenever the
+     * password or the roles of the user change.
+     * @param username
+     */
+    public void invalidate(String username) {
+        forget(username);
+        long now = System.currentTimeMillis();
+        changedAt.merge(username, now, Math::max);
+        credentialChangeRepository.save(new CredentialChange(username, new Date(now))).block();
+    }
+
+    private void forget(String username) {
+        cache.invalidateIf((digest, user) -> user.getUsername().equals(username));
+    }
+
+    /**
+     * Forgets all the verified credentials.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private String digest(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
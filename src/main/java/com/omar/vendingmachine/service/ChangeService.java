@@ -0,0 +1,116 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.pojo.Change;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Calculates the change to be returned to buyers with the least number of coins. The coin tables are built once at startup with
+ * dynamic programming over all the amounts up to the configured table size, so the change is correct for any coin set and not
+ * only for the ones where taking the largest coin first works. Calculating the change is then a walk over the table. Larger
+ * amounts are brought into the table with the largest coin, which is exact as the table always covers the amounts made of
+ * the other coins in the change with the least coins: a coin c other than the largest coin L is never used L times, as c
+ * coins L are fewer, so the other coins are worth at most (L - 1) times their sum.
+ */
+@Service
+public class ChangeService {
+    private static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    @Value("${vending.change.table-size:10000}")
+    private int tableSize;
+
+    private int[] denominations;
+    private String[] denominationNames;
+    private int[] minCoins;
+    private byte[] lastCoin;
+
+    @PostConstruct
+    public void init() {
+        init(UserContants.DEPOSIT_AMOUNTS);
+    }
+
+    /**
+     * Builds the coin tables for the input coin denominations.
+     * @param coins
+     */
+    public void init(Collection<Integer> coins) {
+        List<Integer> sortedCoins = new ArrayList<>(coins);
+        sortedCoins.sort((first, second) -> Integer.compare(second, first));
+        int[] denominations = new int[sortedCoins.size()];
+        String[] denominationNames = new String[sortedCoins.size()];
+        for (int i = 0; i < denominations.length; i++) {
+            denominations[i] = sortedCoins.get(i);
+            denominationNames[i] = String.valueOf(denominations[i]);
+        }
+        int others = 0;
+        for (int i = 1; i < denominations.length; i++) {
+            others += denominations[i];
+        }
+        int size = denominations.length == 0 ? tableSize : Math.max(tableSize, (denominations[0] - 1) * others);
+        int[] minCoins = new int[size + 1];
+        byte[] lastCoin = new byte[size + 1];
+        for (int amount = 1; amount <= size; amount++) {
+            minCoins[amount] = UNREACHABLE;
+            // Coins are tried from the largest, so on equal number of coins the larger coins are returned.
+            for (int i = 0; i < denominations.length; i++) {
+                int rest = amount - denominations[i];
+                if (rest >= 0 && minCoins[rest] != UNREACHABLE && minCoins[rest] + 1 < minCoins[amount]) {
+                    minCoins[amount] = minCoins[rest] + 1;
+                    lastCoin[amount] = (byte) i;
+                }
+            }
+        }
+        this.denominations = denominations;
+        this.denominationNames = denominationNames;
+        this.minCoins = minCoins;
+        this.lastCoin = lastCoin;
+    }
+
+    /**
+     * Returns the coin denominations, largest first.
+     * @return
+     */
+    public int[] getDenominations() {
+        return denominations;
+    }
+
+    /**
+     * Returns the change for the input amount with the least number of coins.
+     * @param amount
+     * @return the change, or null in case the amount can not be made of the coins.
+     */
+    public Change getChange(int amount) {
+        int[] counts = new int[denominations.length];
+        int size = minCoins.length - 1;
+        // Amounts beyond the table are brought into it using the largest coin, see the class comment for why it is exact.
+        if (amount > size) {
+            int largestCoins = (amount - size + denominations[0] - 1) / denominations[0];
+            counts[0] = largestCoins;
+            amount -= largestCoins * denominations[0];
+        }
+        if (amount < 0 || minCoins[amount] == UNREACHABLE) {
+            return null;
+        }
+        while (amount > 0) {
+            int coin = lastCoin[amount];
+            counts[coin]++;
+            amount -= denominations[coin];
+        }
+        return toChange(counts);
+    }
+
+    /**
+     * Wraps the input counts, aligned with {@link #getDenominations()}, as change.
+     * @param counts
+     * @return
+     */
+    public Change toChange(int[] counts) {
+        return new Change(denominations, denominationNames, counts);
+    }
+}
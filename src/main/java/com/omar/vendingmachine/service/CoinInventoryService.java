@@ -0,0 +1,207 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.constants.MachineConstants;
+import com.omar.vendingmachine.model.machine.CoinInventory;
+import com.omar.vendingmachine.pojo.Change;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Keeps track of the coins held by the machine for paying change. The counts are held in memory and changed with atomic
+ * operations, so checking and taking the change of a purchase is a few operations per denomination and never waits on the
+ * database. Every change of the counts is written to the coin inventory document in the background as an increment, so the
+ * order in which the writes reach the database does not matter.
+ */
+@Service
+public class CoinInventoryService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoinInventoryService.class);
+    private static final int SOLVER_BUDGET = 1000;
+
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired
+    ChangeService changeService;
+
+    @Value("${vending.machine.id:machine}")
+    private String machineId;
+
+    @Value("${vending.coins.initial-count:20}")
+    private int initialCount;
+
+    private int[] denominations;
+    private AtomicIntegerArray counts;
+
+    /**
+     * Loads the coin counts of the machine, the machine starts with the configured initial count of each coin in case it has
+     * no coin inventory yet. A machine without coins can only sell for the exact deposit, so it is seeded with some of each
+     * coin by default.
+     */
+    @PostConstruct
+    public void init() {
+        denominations = changeService.getDenominations();
+        counts = new AtomicIntegerArray(denominations.length);
+        CoinInventory inventory = reactiveMongoTemplate.findById(machineId, CoinInventory.class).block();
+        if (inventory == null) {
+            Map<Integer, Integer> coins = new LinkedHashMap<>();
+            for (int denomination : denominations) {
+                coins.put(denomination, initialCount);
+            }
+            fill(coins);
+            return;
+        }
+        for (int i = 0; i < denominations.length; i++) {
+            counts.set(i, inventory.getCoins().getOrDefault(String.valueOf(denominations[i]), 0));
+        }
+    }
+
+    /**
+     * Returns the count of each coin held by the machine.
+     * @return
+     */
+    public Map<Integer, Integer> getCoins() {
+        Map<Integer, Integer> coins = new LinkedHashMap<>();
+        for (int i = 0; i < denominations.length; i++) {
+            coins.put(denominations[i], counts.get(i));
+        }
+        return coins;
+    }
+
+    /**
+     * Sets the count of the input coins, used when the machine is refilled or emptied.
+     * @param coins
+     * @throws IllegalArgumentException in case any of the coins is not accepted by the machine or any count is negative.
+     */
+    public void fill(Map<Integer, Integer> coins) {
+        Update update = new Update();
+        for (Map.Entry<Integer, Integer> coin : coins.entrySet()) {
+            if (indexOf(coin.getKey()) < 0 || coin.getValue() == null || coin.getValue() < 0) {
+                throw new IllegalArgumentException(String.format("Invalid count %s of coin %s", coin.getValue(), coin.getKey()));
+            }
+        }
+        for (Map.Entry<Integer, Integer> coin : coins.entrySet()) {
+            counts.set(indexOf(coin.getKey()), coin.getValue());
+            update.set(coinField(coin.getKey()), coin.getValue());
+        }
+        reactiveMongoTemplate.upsert(new Query(Criteria.where("id").is(machineId)), update, CoinInventory.class).block();
+    }
+
+    /**
+     * Adds an inserted coin to the machine.
+     * @param coin
+     */
+    public void accept(int coin) {
+        int index = indexOf(coin);
+        if (index >= 0) {
+            counts.incrementAndGet(index);
+            persist(new Update().inc(coinField(coin), 1));
+        }
+    }
+
+    /**
+     * Takes the change for the input amount out of the machine. The change with the least coins is taken in case the machine
+     * has these coins, otherwise a bounded search looks for any change that can be made of the coins left in the machine.
+     * @param amount
+     * @return the change taken, or null in case exact change can not be made of the coins in the machine.
+     */
+    public Change dispense(int amount) {
+        Change change = changeService.getChange(amount);
+        if (change != null && take(change)) {
+            return change;
+        }
+        // Retried once, in case a concurrent purchase took the coins between the search and the take.
+        for (int attempt = 0; attempt < 2; attempt++) {
+            int[] available = new int[denominations.length];
+            for (int i = 0; i < available.length; i++) {
+                available[i] = counts.get(i);
+            }
+            int[] coins = new int[denominations.length];
+            if (!solve(0, amount, available, coins, new int[]{SOLVER_BUDGET})) {
+                return null;
+            }
+            change = changeService.toChange(coins);
+            if (take(change)) {
+                return change;
+            }
+        }
+        return null;
+    }
+
+    private boolean take(Change change) {
+        for (int i = 0; i < change.size(); i++) {
+            int needed = change.getCount(i);
+            if (needed == 0) {
+                continue;
+            }
+            int current = counts.get(i);
+            while (current >= needed && !counts.compareAndSet(i, current, current - needed)) {
+                current = counts.get(i);
+            }
+            if (current < needed) {
+                for (int j = 0; j < i; j++) {
+                    counts.addAndGet(j, change.getCount(j));
+                }
+                return false;
+            }
+        }
+        Update update = new Update();
+        for (int i = 0; i < change.size(); i++) {
+            if (change.getCount(i) > 0) {
+                update.inc(coinField(denominations[i]), -change.getCount(i));
+            }
+        }
+        persist(update);
+        return true;
+    }
+
+    /**
+     * Looks for change of the remaining amount using at most the available coins, trying the larger coins first. The search
+     * stops once the budget of steps is spent, so it stays bounded for any coin set.
+     */
+    private boolean solve(int index, int remaining, int[] available, int[] coins, int[] budget) {
+        if (remaining == 0) {
+            return true;
+        }
+        if (index == denominations.length || budget[0]-- <= 0) {
+            return false;
+        }
+        for (int take = Math.min(available[index], remaining / denominations[index]); take >= 0; take--) {
+            coins[index] = take;
+            if (solve(index + 1, remaining - take * denominations[index], available, coins, budget)) {
+                return true;
+            }
+        }
+        coins[index] = 0;
+        return false;
+    }
+
+    private int indexOf(int coin) {
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] == coin) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String coinField(int coin) {
+        return MachineConstants.COINS + "." + coin;
+    }
+
+    private void persist(Update update) {
+        reactiveMongoTemplate.upsert(new Query(Criteria.where("id").is(machineId)), update, CoinInventory.class)
+                .subscribe(result -> {
+                }, error -> LOGGER.error("Could not write the coin inventory of machine {}", machineId, error));
+    }
+}
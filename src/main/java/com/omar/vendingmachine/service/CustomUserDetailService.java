@@ -3,10 +3,14 @@ package com.omar.vendingmachine.service;
 import com.omar.vendingmachine.constants.UserContants;
 import com.omar.vendingmachine.exceptions.InvalidDepositAmountException;
 import com.omar.vendingmachine.exceptions.InvalidPurchaseException;
+import com.omar.vendingmachine.journal.TransactionJournal;
+import com.omar.vendingmachine.model.outbox.OutboxEvent;
 import com.omar.vendingmachine.model.user.Role;
 import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.pojo.Change;
 import com.omar.vendingmachine.repository.UserRepository;
 import com.omar.vendingmachine.repository.custom.CustomUserRepository;
+import com.omar.vendingmachine.security.VerifiedCredentialCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -14,6 +18,7 @@ import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UserDetailsService;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
 
 import java.util.*;
 
@@ -25,6 +30,14 @@ public class CustomUserDetailService implements UserDetailsService {
     CustomUserRepository customUserRepository;
     @Autowired
     RoleService roleService;
+    @Autowired
+    CoinInventoryService coinInventoryService;
+    @Autowired
+    VerifiedCredentialCache verifiedCredentialCache;
+    @Autowired
+    TransactionJournal transactionJournal;
+    @Autowired
+    OutboxService outboxService;
 
     /**
      * Lists all the users in the users collection --> for testing purposes only.
@@ -39,6 +52,7 @@ public class CustomUserDetailService implements UserDetailsService {
      */
     public void deleteAll() {
         userRepository.deleteAll().block();
+        verifiedCredentialCache.clear();
     }
 
     /**
@@ -52,11 +66,12 @@ public class CustomUserDetailService implements UserDetailsService {
 
     /**
      * Saves user to the database. Performs update in case the user exists and inserts a new user in case the user does not exist.
+     * The password or the roles may change, so the verified credentials of the user are forgotten.
      * @param user
      */
     public void saveUser(User user) {
         userRepository.save(user).block();
-
+        verifiedCredentialCache.invalidate(user.getUsername());
     }
 
     /**
@@ -73,69 +88,88 @@ public class CustomUserDetailService implements UserDetailsService {
         user.setRoles(new HashSet<>(Arrays.asList(role)));
         user.setDeposit(deposit);
         userRepository.save(user).block();
+        verifiedCredentialCache.invalidate(username);
     }
 
     /**
-     * Adds the deposit amount to the user with the input username
+     * Adds the deposit amount to the user with the input username, with a single atomic increment of the deposit.
      * @param username
      * @param amount
-     * @throws InvalidDepositAmountException in case the deposit amount is not among the allowed values.
+     * @return the user after the deposit (only the deposit is loaded), or an InvalidDepositAmountException error in case the
+     * deposit amount is not among the allowed values.
      */
-    public void depoist(String username, int amount) throws InvalidDepositAmountException {
-        if (!UserContants.DEPOSIT_AMOUNTS.contains(amount)) {
-            throw new InvalidDepositAmountException(String.format("Invalid deposit amount, the deposit amount should be among the values %s", UserContants.DEPOSIT_AMOUNTS));
-        }
-        User user = findByUsername(username);
-        user.setDeposit(user.getDeposit() + amount);
-        saveUser(user);
+    public Mono<User> depoist(String username, int amount) {
+        return depositCoins(username, Collections.singletonList(amount));
     }
 
     /**
-     * Resets the deposit of the user with the input username to 0
+     * Adds the coins to the deposit of the user with the input username at once, with a single atomic increment of the deposit.
      * @param username
+     * @param coins
+     * @return the user after the deposit (only the deposit is loaded), or an InvalidDepositAmountException error in case there
+     * are no coins or any of them is not among the allowed values, nothing is deposit then.
      */
-    public void resetDeposit(String username) {
-        User user = findByUsername(username);
-        user.setDeposit(0);
-        saveUser(user);
+    public Mono<User> depositCoins(String username, List<Integer> coins) {
+        if (coins == null || coins.isEmpty() || !UserContants.DEPOSIT_AMOUNTS.containsAll(coins)) {
+            return Mono.error(new InvalidDepositAmountException(String.format("Invalid deposit amount, the deposit amount should be among the values %s", UserContants.DEPOSIT_AMOUNTS)));
+        }
+        int amount = 0;
+        for (int coin : coins) {
+            amount += coin;
+        }
+        int deposit = amount;
+        return customUserRepository.creditDeposit(username, amount)
+                .doOnNext(user -> {
+                    transactionJournal.deposit(username, deposit);
+                    coins.forEach(coinInventoryService::accept);
+                });
     }
 
     /**
-     * Completes the payment of the amount. If the amount is not availlable, throws exception
-     *
+     * Resets the deposit of the user with the input username to 0, with a single atomic write of the deposit. The deposit is
+     * given back in coins, which are taken out of the machine.
      * @param username
-     * @param amount
-     * @return
+     * @return the user after the reset (only the deposit is loaded), or an InvalidDepositAmountException error in case the
+     * deposit can not be given back with the coins in the machine, the deposit is kept then.
      */
-    public List<Integer> completePayment(String username, Integer amount) throws InvalidPurchaseException {
-        User user = findByUsername(username);
-        if (user.getDeposit() < amount) {
-            throw new InvalidPurchaseException("User does not have suffecient funds");
-        }
-        int deposit = user.getDeposit();
-        user.setDeposit(0);
-        saveUser(user);
-        return getChange(deposit, amount);
+    public Mono<User> resetDeposit(String username) {
+        return customUserRepository.resetDeposit(username)
+                .flatMap(user -> {
+                    int deposit = user.getDeposit() == null ? 0 : user.getDeposit();
+                    if (coinInventoryService.dispense(deposit) == null) {
+                        return customUserRepository.creditDeposit(username, deposit)
+                                .then(Mono.<User>error(new InvalidDepositAmountException(String.format(
+                                        "The deposit of %s can not be given back with the coins in the machine", deposit))));
+                    }
+                    transactionJournal.reset(username);
+                    user.setDeposit(0);
+                    return Mono.just(user);
+                });
     }
 
     /**
-     * Accepts the deposit that user has and the payment he shall pay and returns list of change coins
+     * Completes the payment of the amount. If the amount is not availlable, throws exception. The deposit is taken in a
+     * single conditional update, so concurrent purchases can not spend the same deposit twice. The purchase event is recorded
+     * by the same update, and dropped in case the deposit is given back.
      *
-     * @param deposit
-     * @param payment
-     * @return
+     * @param username
+     * @param amount
+     * @param purchase the purchase event.
+     * @return the change, or an InvalidPurchaseException error in case the deposit does not cover the amount or exact change
+     * can not be made of the coins in the machine, the deposit is kept in both cases.
      */
-    private List<Integer> getChange(int deposit, int payment) {
-        List<Integer> result = new ArrayList<>();
-        deposit = deposit - payment;
-        List<Integer> coinsTypes = new ArrayList<>(UserContants.DEPOSIT_AMOUNTS);
-        coinsTypes.sort(Integer::compareTo);
-        for (int i = coinsTypes.size() - 1; i >= 0; i--) {
-            int times = deposit / coinsTypes.get(i);
-            deposit = deposit - times * coinsTypes.get(i);
-            result.addAll(Collections.nCopies(times, coinsTypes.get(i)));
-        }
-        return result;
+    public Mono<Change> completePayment(String username, Integer amount, OutboxEvent purchase) {
+        return customUserRepository.debitDeposit(username, amount, outboxService.encode(purchase))
+                .switchIfEmpty(Mono.error(() -> new InvalidPurchaseException("User does not have suffecient funds")))
+                .flatMap(user -> {
+                    Change change = coinInventoryService.dispense(user.getDeposit() - amount);
+                    if (change == null) {
+                        return customUserRepository.refundDeposit(username, user.getDeposit(), purchase.getSourceId())
+                                .then(Mono.<Change>error(new InvalidPurchaseException(String.format(
+                                        "Exact change of %s can not be made, please use smaller coins", user.getDeposit() - amount))));
+                    }
+                    return Mono.just(change);
+                });
     }
 
     @Override
@@ -0,0 +1,171 @@
+package com.omar.vendingmachine.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.event.ProductChangedEvent;
+import com.omar.vendingmachine.event.ProductVersions;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.MenuSnapshot;
+import com.omar.vendingmachine.repository.custom.CustomProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.DigestUtils;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the menu of the machine, the products that are not deleted, encoded as JSON so the displays polling it do not cost a
+ * serialization of the catalog per poll. Every product is encoded once when it changes, and the menus, global and per seller,
+ * are built by copying the encoded products next to each other and gzipped once. A menu is rebuilt on the first poll after any
+ * of its products changed, but not more often than the configured interval, so the stock shown may lag the purchases by that
+ * interval. Only the sellers that have products get a menu of their own kept, any other seller gets the empty menu, so the
+ * menus kept are bounded by the sellers of the catalog.
+ */
+@Service
+public class MenuSnapshotService {
+    private static final String ALL_SELLERS = "";
+    private static final MenuSnapshot EMPTY = encode(new byte[]{'[', ']'});
+
+    @Autowired
+    CustomProductRepository customProductRepository;
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Value("${vending.menu.min-rebuild-interval-ms:1000}")
+    private long minRebuildInterval;
+
+    private final Map<String, EncodedProduct> products = new ConcurrentSkipListMap<>();
+    private final Map<String, MenuSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong changes = new AtomicLong();
+    private final ProductVersions versions = new ProductVersions();
+
+    /**
+     * Encodes all the products of the catalog, reading them from the database cursor.
+     */
+    @PostConstruct
+    public synchronized void reload() {
+        products.clear();
+        versions.clear();
+        customProductRepository.findCatalog(null, 0, false)
+                .doOnNext(product -> {
+                    versions.advance(product);
+                    products.put(product.getId(), encode(product));
+                })
+                .blockLast();
+        changes.incrementAndGet();
+        snapshots.clear();
+    }
+
+    /**
+     * Returns the menu of the input seller, or of all the sellers in case the seller is null.
+     * @param seller
+     * @return
+     */
+    public MenuSnapshot getMenu(String seller) {
+        String key = seller == null ? ALL_SELLERS : seller;
+        MenuSnapshot snapshot = snapshots.get(key);
+        if (snapshot != null && (!snapshot.isStale() || System.currentTimeMillis() - snapshot.getBuiltAt() < minRebuildInterval)) {
+            return snapshot;
+        }
+        if (seller != null && products.values().stream().noneMatch(product -> seller.equals(product.seller))) {
+            snapshots.remove(key);
+            return EMPTY;
+        }
+        long changesBefore = changes.get();
+        snapshot = build(seller);
+        snapshots.put(key, snapshot);
+        // A product that changed while building may be missing from the snapshot.
+        if (changes.get() != changesBefore) {
+            snapshot.markStale();
+        }
+        return snapshot;
+    }
+
+    @EventListener
+    public synchronized void onProductChanged(ProductChangedEvent event) {
+        Product product = event.getProduct();
+        if (product == null) {
+            reload();
+            return;
+        }
+        if (!versions.advance(product)) {
+            return;
+        }
+        if (product.isDeleted()) {
+            products.remove(product.getId());
+        } else {
+            products.put(product.getId(), encode(product));
+        }
+        changes.incrementAndGet();
+        markStale(ALL_SELLERS);
+        markStale(product.getSellerUserName());
+    }
+
+    private void markStale(String key) {
+        MenuSnapshot snapshot = snapshots.get(key);
+        if (snapshot != null) {
+            snapshot.markStale();
+        }
+    }
+
+    private MenuSnapshot build(String seller) {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        json.write('[');
+        boolean first = true;
+        for (EncodedProduct product : products.values()) {
+            if (seller != null && !seller.equals(product.seller)) {
+                continue;
+            }
+            if (!first) {
+                json.write(',');
+            }
+            json.write(product.json, 0, product.json.length);
+            first = false;
+        }
+        json.write(']');
+        return encode(json.toByteArray());
+    }
+
+    /**
+     * Gzips the menu encoded as JSON. Both encodings share a weak tag, being the same menu but not the same bytes.
+     * @param jsonBytes
+     * @return
+     */
+    private static MenuSnapshot encode(byte[] jsonBytes) {
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream(jsonBytes.length / 4 + 32);
+        try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+            out.write(jsonBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new MenuSnapshot(jsonBytes, gzip.toByteArray(), "W/\"" + DigestUtils.md5DigestAsHex(jsonBytes) + "\"");
+    }
+
+    private EncodedProduct encode(Product product) {
+        try {
+            return new EncodedProduct(product.getSellerUserName(), objectMapper.writeValueAsBytes(product));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class EncodedProduct {
+        private final String seller;
+        private final byte[] json;
+
+        EncodedProduct(String seller, byte[] json) {
+            this.seller = seller;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.constants.ProductConstants;
+import com.omar.vendingmachine.model.outbox.OutboxEvent;
+import com.omar.vendingmachine.model.outbox.OutboxEventType;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.model.user.User;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.omar.vendingmachine.constants.OutboxConstants.PENDING_EVENTS;
+import static com.omar.vendingmachine.constants.OutboxConstants.SOURCE_ID;
+
+/**
+ * Records the purchases, restocks and deletions of the products, so they are delivered to the downstream systems by the
+ * {@link com.omar.vendingmachine.outbox.OutboxPublisher}. An event is recorded in the pending events of the document changed
+ * with it, by the same write as the change: the product for the restocks and the deletions, and the buyer, whose deposit is
+ * taken, for the purchases. So an event is recorded if and only if its change is. The pending events are then moved to the
+ * outbox by the publisher before each delivery, off the path of the change, so a purchase or an update never waits for the
+ * outbox. Moving an event twice only keeps it once, as the outbox is unique on the id the event was recorded with.
+ */
+@Service
+public class OutboxService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OutboxService.class);
+
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final LongAdder moved = new LongAdder();
+    private final LongAdder failedMoves = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        FunctionCounter.builder("vending.outbox.moved", moved, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.outbox.moves.failed", failedMoves, LongAdder::sum).register(meterRegistry);
+    }
+
+    /**
+     * Returns the purchase of one item of the product by the user with the input username.
+     * @param username
+     * @param product the product after the purchase.
+     * @return
+     */
+    public OutboxEvent purchase(String username, Product product) {
+        return event(OutboxEventType.PURCHASE, product.getId(), product.getSellerUserName(), username, 1, product.getCost(),
+                product.getAmountAvaillable());
+    }
+
+    /**
+     * Returns the event of the update of the product in case it deletes the product or increases its stock.
+     * @param before the product the update is applied to.
+     * @param update
+     * @return the event, or null in case the update neither deletes the product nor increases its stock.
+     */
+    public OutboxEvent changed(Product before, Update update) {
+        Document set = update.getUpdateObject().get("$set", Document.class);
+        if (set == null) {
+            return null;
+        }
+        Integer cost = set.containsKey(ProductConstants.COST) ? set.getInteger(ProductConstants.COST) : before.getCost();
+        if (Boolean.TRUE.equals(set.get(ProductConstants.DELETED)) && !before.isDeleted()) {
+            return event(OutboxEventType.DELETE, before.getId(), before.getSellerUserName(), null, null, cost, before.getAmountAvaillable());
+        }
+        Integer amount = set.getInteger(ProductConstants.AMOUNT_AVAILLABLE);
+        if (amount == null || before.getAmountAvaillable() == null || amount <= before.getAmountAvaillable()) {
+            return null;
+        }
+        return event(OutboxEventType.RESTOCK, before.getId(), before.getSellerUserName(), null,
+                amount - before.getAmountAvaillable(), cost, amount);
+    }
+
+    /**
+     * Returns the restock of the product with the input id, without the quantity, the cost and the stock, which are only known
+     * when the stock is written.
+     * @param id
+     * @param sellerUserName
+     * @return
+     */
+    public OutboxEvent restock(String id, String sellerUserName) {
+        return event(OutboxEventType.RESTOCK, id, sellerUserName, null, null, null, null);
+    }
+
+    /**
+     * Adds the recording of the event to the update of the document changed with it.
+     * @param update
+     * @param event
+     * @return the update.
+     */
+    public Update record(Update update, OutboxEvent event) {
+        return update.push(PENDING_EVENTS, encode(event));
+    }
+
+    /**
+     * Encodes the event as it is recorded in the pending events of a document.
+     * @param event
+     * @return
+     */
+    public Document encode(OutboxEvent event) {
+        Document document = new Document();
+        reactiveMongoTemplate.getConverter().write(event, document);
+        document.remove("_class");
+        return document;
+    }
+
+    /**
+     * Moves the pending events of all the products and users to the outbox.
+     * @return
+     */
+    public Mono<Void> moveAll() {
+        return move(Product.class).then(move(User.class));
+    }
+
+    /**
+     * Moves the pending events of the documents of the entity to the outbox. A failing move is logged and counted, the events
+     * stay pending and are moved by a later call.
+     */
+    private Mono<Void> move(Class<?> entityClass) {
+        String collection = reactiveMongoTemplate.getCollectionName(entityClass);
+        Query query = new Query(Criteria.where(PENDING_EVENTS + "." + SOURCE_ID).exists(true));
+        query.fields().include(PENDING_EVENTS);
+        return reactiveMongoTemplate.find(query, Document.class, collection)
+                .concatMap(document -> move(collection, document))
+                .then()
+                .onErrorResume(e -> {
+                    failedMoves.increment();
+                    LOGGER.error("Could not move the pending events of {} to the outbox", collection, e);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<Void> move(String collection, Document document) {
+        List<Document> pending = document.getList(PENDING_EVENTS, Document.class);
+        List<String> sourceIds = new ArrayList<>();
+        for (Document event : pending) {
+            sourceIds.add(event.getString(SOURCE_ID));
+        }
+        return Flux.fromIterable(pending)
+                .concatMap(event -> reactiveMongoTemplate.insert(reactiveMongoTemplate.getConverter().read(OutboxEvent.class, event))
+                        .then()
+                        // Moved already, by another node or by a move that failed before dropping the pending event.
+                        .onErrorResume(DuplicateKeyException.class, e -> Mono.empty()))
+                .then(reactiveMongoTemplate.updateFirst(new Query(Criteria.where("_id").is(document.get("_id"))),
+                        new Update().pull(PENDING_EVENTS, new Document(SOURCE_ID, new Document("$in", sourceIds))), collection))
+                .doOnNext(result -> moved.add(sourceIds.size()))
+                .then();
+    }
+
+    private static OutboxEvent event(OutboxEventType type, String productId, String sellerUserName, String username,
+                                     Integer quantity, Integer cost, Integer amountAvaillable) {
+        return new OutboxEvent(null, new ObjectId().toHexString(), type, productId, sellerUserName, username, quantity, cost,
+                amountAvaillable, new Date());
+    }
+}
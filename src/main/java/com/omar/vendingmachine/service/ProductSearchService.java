@@ -0,0 +1,214 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.event.ProductChangedEvent;
+import com.omar.vendingmachine.event.ProductVersions;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.repository.custom.CustomProductRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Searches the products that are not deleted by their names without querying the database. The names are kept in a sorted map
+ * for the prefix matches and split into trigrams for the substring and the typo tolerant matches, where a name matches in case
+ * it shares enough of its trigrams with the searched text. The index is loaded at startup and kept up to date with the product
+ * changes made on this node.
+ */
+@Service
+public class ProductSearchService {
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    @Autowired
+    CustomProductRepository customProductRepository;
+
+    @Value("${vending.search.min-similarity:0.4}")
+    private double minSimilarity;
+
+    @Value("${vending.catalog.max-page-size:100}")
+    private int maxPageSize;
+
+    private final Map<String, IndexedProduct> products = new ConcurrentHashMap<>();
+    private final NavigableMap<String, IndexedProduct> byName = new ConcurrentSkipListMap<>();
+    private final Map<String, Set<String>> byTrigram = new ConcurrentHashMap<>();
+    private final ProductVersions versions = new ProductVersions();
+
+    /**
+     * Indexes all the products of the catalog, reading them from the database cursor.
+     */
+    @PostConstruct
+    public synchronized void reload() {
+        products.clear();
+        byName.clear();
+        byTrigram.clear();
+        versions.clear();
+        customProductRepository.findCatalog(null, 0, false)
+                .doOnNext(product -> {
+                    versions.advance(product);
+                    index(product);
+                })
+                .blockLast();
+    }
+
+    @EventListener
+    public synchronized void onProductChanged(ProductChangedEvent event) {
+        Product product = event.getProduct();
+        if (product == null) {
+            reload();
+        } else if (versions.advance(product)) {
+            index(product);
+        }
+    }
+
+    /**
+     * Searches the products by their names. The names starting with the text come first in the order of the names, then the
+     * names containing the text and, in case fuzzy is set, the names similar to the text, both from the most similar.
+     * @param text
+     * @param fuzzy whether the names that do not contain the text but are similar to it are matched.
+     * @param page the page, starting from 0.
+     * @param size the number of products per page, capped to the configured maximum page size.
+     * @return the products of the page.
+     * @throws IllegalArgumentException in case the page is negative or the size is not positive.
+     */
+    public List<Product> search(String text, boolean fuzzy, int page, int size) {
+        if (page < 0 || size <= 0) {
+            throw new IllegalArgumentException("The page should not be less than 0 and the size should be more than 0");
+        }
+        size = Math.min(size, maxPageSize);
+        String query = normalize(text);
+        int wanted = (page + 1) * size;
+        Set<IndexedProduct> matches = new LinkedHashSet<>();
+        for (IndexedProduct product : byName.subMap(query, true, query + Character.MAX_VALUE, true).values()) {
+            if (matches.size() == wanted) {
+                break;
+            }
+            matches.add(product);
+        }
+        if (matches.size() < wanted) {
+            matches.addAll(similar(query, fuzzy, wanted - matches.size()));
+        }
+        List<Product> result = new ArrayList<>();
+        int index = 0;
+        for (IndexedProduct product : matches) {
+            if (index++ >= page * size) {
+                result.add(product.product);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Ranks the names sharing trigrams with the query, the names containing the query first and then the others by their
+     * similarity to the query.
+     */
+    private List<IndexedProduct> similar(String query, boolean fuzzy, int limit) {
+        Set<String> queryTrigrams = trigrams(query);
+        Map<IndexedProduct, Integer> shared = new HashMap<>();
+        for (String trigram : queryTrigrams) {
+            for (String id : byTrigram.getOrDefault(trigram, Collections.emptySet())) {
+                IndexedProduct product = products.get(id);
+                if (product != null) {
+                    shared.merge(product, 1, Integer::sum);
+                }
+            }
+        }
+        List<ScoredProduct> scored = new ArrayList<>();
+        for (Map.Entry<IndexedProduct, Integer> entry : shared.entrySet()) {
+            IndexedProduct product = entry.getKey();
+            if (product.name.startsWith(query)) {
+                continue;
+            }
+            // Dice coefficient of the trigram sets, a name containing the query is ranked above any similar one.
+            double similarity = 2.0 * entry.getValue() / (queryTrigrams.size() + product.trigrams.size());
+            if (product.name.contains(query)) {
+                scored.add(new ScoredProduct(product, 1 + similarity));
+            } else if (fuzzy && similarity >= minSimilarity) {
+                scored.add(new ScoredProduct(product, similarity));
+            }
+        }
+        scored.sort(Comparator.comparingDouble((ScoredProduct product) -> -product.score)
+                .thenComparing(product -> product.product.key));
+        List<IndexedProduct> result = new ArrayList<>();
+        for (int i = 0; i < scored.size() && i < limit; i++) {
+            result.add(scored.get(i).product);
+        }
+        return result;
+    }
+
+    private void index(Product product) {
+        IndexedProduct old = products.remove(product.getId());
+        if (old != null) {
+            byName.remove(old.key);
+            for (String trigram : old.trigrams) {
+                Set<String> ids = byTrigram.get(trigram);
+                if (ids != null) {
+                    ids.remove(product.getId());
+                }
+            }
+        }
+        if (product.isDeleted() || product.getProductName() == null) {
+            return;
+        }
+        IndexedProduct indexed = new IndexedProduct(product);
+        for (String trigram : indexed.trigrams) {
+            byTrigram.computeIfAbsent(trigram, key -> ConcurrentHashMap.newKeySet()).add(product.getId());
+        }
+        byName.put(indexed.key, indexed);
+        products.put(product.getId(), indexed);
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Splits the text into its trigrams, padded so the start and the end of the text have their own trigrams.
+     */
+    private static Set<String> trigrams(String text) {
+        String padded = "  " + text + " ";
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    private static class IndexedProduct {
+        private final Product product;
+        private final String name;
+        private final String key;
+        private final Set<String> trigrams;
+
+        IndexedProduct(Product product) {
+            this.product = product;
+            this.name = normalize(product.getProductName());
+            // Names are not unique, the id keeps the products with the same name apart.
+            this.key = name + KEY_SEPARATOR + product.getId();
+            this.trigrams = trigrams(name);
+        }
+    }
+
+    private static class ScoredProduct {
+        private final IndexedProduct product;
+        private final double score;
+
+        ScoredProduct(IndexedProduct product, double score) {
+            this.product = product;
+            this.score = score;
+        }
+    }
+}
@@ -1,27 +1,115 @@
 package com.omar.vendingmachine.service;
 
+import com.omar.vendingmachine.cache.BoundedCache;
 import com.omar.vendingmachine.constants.ProductConstants;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.event.ProductChangedEvent;
 import com.omar.vendingmachine.exceptions.InvalidPurchaseException;
+import com.omar.vendingmachine.exceptions.ProductConflictException;
 import com.omar.vendingmachine.exceptions.ProductDoesNotExistException;
+import com.omar.vendingmachine.journal.TransactionJournal;
+import com.omar.vendingmachine.model.outbox.OutboxEvent;
 import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.Change;
+import com.omar.vendingmachine.pojo.ProductBatchResult;
+import com.omar.vendingmachine.pojo.ProductFilter;
 import com.omar.vendingmachine.pojo.ProductPojo;
 import com.omar.vendingmachine.repository.ProductRepository;
+import com.omar.vendingmachine.repository.custom.CustomProductRepository;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.commons.lang3.StringUtils;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.function.Tuple2;
+import reactor.util.function.Tuples;
 
+import javax.annotation.PostConstruct;
 import javax.validation.ConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class ProductService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProductService.class);
+
     @Autowired
     ProductRepository productRepository;
     @Autowired
+    CustomProductRepository customProductRepository;
+    @Autowired
     CustomUserDetailService customUserDetailService;
+    @Autowired
+    StockReservationService stockReservationService;
+    @Autowired
+    MeterRegistry meterRegistry;
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+    @Autowired
+    TransactionJournal transactionJournal;
+    @Autowired
+    PurchaseHistoryService purchaseHistoryService;
+    @Autowired
+    SalesRollupService salesRollupService;
+    @Autowired
+    OutboxService outboxService;
+
+    @Value("${vending.catalog.max-page-size:100}")
+    private int maxPageSize;
+
+    @Value("${vending.product.update-retries:3}")
+    private int updateRetries;
+
+    @Value("${vending.product.cache.max-size:10000}")
+    private int cacheMaxSize;
+
+    @Value("${vending.product.cache.ttl-ms:5000}")
+    private long cacheTtl;
+
+    /**
+     * Products read lately. The products changed on this node are updated in place, the ones changed by other nodes are
+     * stale for at most the time to live of the cache. The cached products are never handed out, only copies of them.
+     */
+    private BoundedCache<String, Product> productCache;
+    private final Map<String, Mono<Product>> pendingReads = new ConcurrentHashMap<>();
+    private final LongAdder collapsedReads = new LongAdder();
+    private final LongAdder updateConflicts = new LongAdder();
+    private final LongAdder failedUpdates = new LongAdder();
 
+    @PostConstruct
+    public void init() {
+        productCache = new BoundedCache<>(cacheMaxSize, cacheTtl);
+        FunctionCounter.builder("vending.product.cache.hits", productCache, BoundedCache::getHits).register(meterRegistry);
+        FunctionCounter.builder("vending.product.cache.misses", productCache, BoundedCache::getMisses).register(meterRegistry);
+        FunctionCounter.builder("vending.product.cache.evictions", productCache, BoundedCache::getEvictions).register(meterRegistry);
+        Gauge.builder("vending.product.cache.size", productCache, BoundedCache::size).register(meterRegistry);
+        FunctionCounter.builder("vending.product.reads.collapsed", collapsedReads, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.product.update.conflicts", updateConflicts, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.product.update.failed", failedUpdates, LongAdder::sum).register(meterRegistry);
+        Long versioned = customProductRepository.initVersions().block();
+        if (versioned != null && versioned > 0) {
+            LOGGER.info("Set the version of {} products", versioned);
+        }
+    }
 
     /**
      * Lists all the products in the products collection in the database --> for testing purposes only.
@@ -31,11 +119,65 @@ public class ProductService {
         return productRepository.findAll();
     }
 
+    /**
+     * Lists a page of the catalog in the order of the product ids.
+     * @param after the id of the last product of the previous page, or null for the first page.
+     * @param limit the maximum number of products, capped to the configured maximum page size.
+     * @param includeDeleted whether the soft-deleted products are listed.
+     * @return the products of the page and the id to pass as after for the next page, null in case this is the last page.
+     * @throws IllegalArgumentException in case after is not a product id or the limit is not positive.
+     */
+    public Mono<Map<String, Object>> catalogPage(String after, int limit, boolean includeDeleted) {
+        if (limit <= 0) {
+            return Mono.error(new IllegalArgumentException("The limit should be more than 0"));
+        }
+        int pageSize = Math.min(limit, maxPageSize);
+        return catalog(after, pageSize, includeDeleted)
+                .collectList()
+                .map(products -> {
+                    Map<String, Object> page = new HashMap<>();
+                    page.put(ProductConstants.PRODUCTS, products);
+                    page.put(ProductConstants.NEXT, products.size() < pageSize ? null : products.get(products.size() - 1).getId());
+                    return page;
+                });
+    }
+
+    /**
+     * Streams the catalog in the order of the product ids as it is read from the database cursor, so the products are never
+     * all held in memory.
+     * @param after the id of the last product already received, or null to start from the first product.
+     * @param limit the maximum number of products, or 0 for all of them.
+     * @param includeDeleted whether the soft-deleted products are listed.
+     * @return the products, or an IllegalArgumentException error in case after is not a product id.
+     */
+    public Flux<Product> catalog(String after, int limit, boolean includeDeleted) {
+        if (after != null && !ObjectId.isValid(after)) {
+            return Flux.error(new IllegalArgumentException(String.format("Invalid product id %s", after)));
+        }
+        return customProductRepository.findCatalog(after, Math.max(limit, 0), includeDeleted);
+    }
+
+    /**
+     * Lists the products that are not deleted and match the filter, from the cheapest.
+     * @param filter
+     * @param limit the maximum number of products, capped to the configured maximum page size.
+     * @return the products, or an IllegalArgumentException error in case the limit is not positive.
+     */
+    public Flux<Product> filterProducts(ProductFilter filter, int limit) {
+        if (limit <= 0) {
+            return Flux.error(new IllegalArgumentException("The limit should be more than 0"));
+        }
+        return customProductRepository.findFiltered(filter, Math.min(limit, maxPageSize));
+    }
+
     /**
      * Hard deletes all the products in the products collecion in the database --> for testing purposes only.
      */
     public void deleteAll() {
+        stockReservationService.retireAll();
         productRepository.deleteAll();
+        productCache.clear();
+        eventPublisher.publishEvent(new ProductChangedEvent(null));
     }
 
     /**
@@ -55,37 +197,162 @@ public class ProductService {
             throw new ConstraintViolationException("The cost should be multiple of 5", null);
         }
         product.setCost(productPojo.getCost());
-        return saveProduct(product);
+        Product saved = saveProduct(product);
+        transactionJournal.stock(username, saved.getId(), saved.getAmountAvaillable());
+        return saved;
+    }
+
+    /**
+     * Creates the products of the batch for the seller with the input username with one bulk write. Every product is validated
+     * on its own and the invalid ones are reported without stopping the others.
+     * @param productPojos
+     * @param username
+     * @return the result of each product, in the order of the batch.
+     */
+    public List<ProductBatchResult> createProducts(List<ProductPojo> productPojos, String username) {
+        ProductBatchResult[] results = new ProductBatchResult[productPojos.size()];
+        List<Product> products = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < productPojos.size(); i++) {
+            ProductPojo productPojo = productPojos.get(i);
+            String error;
+            if (StringUtils.isBlank(productPojo.getProductName())) {
+                error = "Product Name is mandetory";
+            } else if (productPojo.getAmountAvaillable() == null) {
+                error = "Amount Availlable is mandetory";
+            } else if (productPojo.getCost() == null) {
+                error = "The cost should be multiple of 5";
+            } else {
+                error = validationError(productPojo);
+            }
+            if (error != null) {
+                results[i] = new ProductBatchResult(i, null, false, error);
+                continue;
+            }
+            products.add(new Product(new ObjectId().toHexString(), productPojo.getProductName(), productPojo.getAmountAvaillable(),
+                    productPojo.getCost(), username, false, 0L));
+            indexes.add(i);
+        }
+        Map<Integer, String> errors = customProductRepository.bulkInsert(products).block();
+        for (int i = 0; i < products.size(); i++) {
+            Product product = products.get(i);
+            String error = errors.get(i);
+            results[indexes.get(i)] = new ProductBatchResult(indexes.get(i), product.getId(), error == null, error);
+            if (error == null) {
+                cache(product);
+                eventPublisher.publishEvent(new ProductChangedEvent(copyOf(product)));
+                transactionJournal.stock(username, product.getId(), product.getAmountAvaillable());
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Updates the products of the batch to only the values that are not null, with one query checking that the seller with the
+     * input username owns the products and one bulk write. Every product is validated on its own and the invalid ones are
+     * reported without stopping the others.
+     * @param productPojos
+     * @param username
+     * @return the result of each product, in the order of the batch.
+     */
+    public List<ProductBatchResult> updateProducts(List<ProductPojo> productPojos, String username) {
+        ProductBatchResult[] results = new ProductBatchResult[productPojos.size()];
+        Set<String> ids = new HashSet<>();
+        for (ProductPojo productPojo : productPojos) {
+            if (productPojo.getId() != null && ObjectId.isValid(productPojo.getId())) {
+                ids.add(productPojo.getId());
+            }
+        }
+        Set<String> owned = new HashSet<>();
+        customProductRepository.findOwned(ids, username).doOnNext(product -> owned.add(product.getId())).blockLast();
+        List<ProductPojo> updates = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < productPojos.size(); i++) {
+            ProductPojo productPojo = productPojos.get(i);
+            String error;
+            if (!owned.contains(productPojo.getId())) {
+                error = String.format("No product with id %s exist for seller %s", productPojo.getId(), username);
+            } else if (productPojo.getProductName() == null && productPojo.getAmountAvaillable() == null && productPojo.getCost() == null) {
+                error = "Nothing to update";
+            } else if (productPojo.getProductName() != null && StringUtils.isBlank(productPojo.getProductName())) {
+                error = "Product Name is mandetory";
+            } else {
+                error = validationError(productPojo);
+            }
+            if (error != null) {
+                results[i] = new ProductBatchResult(i, productPojo.getId(), false, error);
+                continue;
+            }
+            updates.add(productPojo);
+            indexes.add(i);
+        }
+        Set<String> updatedIds = new HashSet<>();
+        List<Document> restocks = new ArrayList<>();
+        for (ProductPojo productPojo : updates) {
+            updatedIds.add(productPojo.getId());
+            restocks.add(productPojo.getAmountAvaillable() == null ? null
+                    : outboxService.encode(outboxService.restock(productPojo.getId(), username)));
+        }
+        Flux.fromIterable(updatedIds).flatMap(stockReservationService::retire).blockLast();
+        Map<Integer, String> errors = customProductRepository.bulkUpdate(updates, restocks, username).block();
+        for (int i = 0; i < updates.size(); i++) {
+            String error = errors.get(i);
+            results[indexes.get(i)] = new ProductBatchResult(indexes.get(i), updates.get(i).getId(), error == null, error);
+            if (error == null && updates.get(i).getAmountAvaillable() != null) {
+                transactionJournal.stock(username, updates.get(i).getId(), updates.get(i).getAmountAvaillable());
+            }
+        }
+        // The products are read back once, so the cache and the listeners get the products as they are after the batch.
+        customProductRepository.findOwned(updatedIds, username)
+                .doOnNext(product -> {
+                    cache(product);
+                    eventPublisher.publishEvent(new ProductChangedEvent(copyOf(product)));
+                })
+                .blockLast();
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Checks the values of a product that are shared by the creates and the updates.
+     * @return the error, or null in case the values are valid.
+     */
+    private static String validationError(ProductPojo productPojo) {
+        if (productPojo.getAmountAvaillable() != null && productPojo.getAmountAvaillable() < 0) {
+            return "Amount Availlable can not be less than 0";
+        }
+        if (productPojo.getCost() != null && (productPojo.getCost() < 5 || productPojo.getCost() % 5 != 0)) {
+            return "The cost should be multiple of 5";
+        }
+        return null;
     }
 
     /**
      * Updates a product in the database to only the values that are not null in the ProductPojo object. It uses username to verify
-     * that the user performing the update is the owner of the product to be updated.
+     * that the user performing the update is the owner of the product to be updated. Only the changed fields are written and only
+     * in case the product did not change since it was read, otherwise the update is retried on the changed product. In case
+     * the ProductPojo holds the version it is based on, or the update sets the stock, the update is not retried.
      * @param productPojo
      * @param username
      * @return
      * @throws ProductDoesNotExistException In case the product does not exist or no product with the input id belongs to the input user.
      * @throws ConstraintViolationException In case any value violates the constraints.
+     * @throws ProductConflictException In case the product kept changing meanwhile, or changed since the version in the ProductPojo
+     * or since it was read in case the stock is set.
      */
-    public Product updateProduct(ProductPojo productPojo, String username) throws ProductDoesNotExistException, ConstraintViolationException {
-        Product updatedProduct = findProductById(productPojo.getId());
-        if (updatedProduct == null || !updatedProduct.getSellerUserName().equalsIgnoreCase(username)) {
-            throw new ProductDoesNotExistException(String.format("No product with id %s exist for seller %s",
-                    productPojo.getId(), username));
-        }
+    public Product updateProduct(ProductPojo productPojo, String username) throws ProductDoesNotExistException, ConstraintViolationException,
+            ProductConflictException {
+        Update update = new Update();
         if (StringUtils.isNoneBlank(productPojo.getProductName())) {
-            updatedProduct.setProductName(productPojo.getProductName());
+            update.set(ProductConstants.PRODUCT_NAME, productPojo.getProductName());
         }
         if (productPojo.getAmountAvaillable() != null) {
-            updatedProduct.setAmountAvaillable(productPojo.getAmountAvaillable());
+            // The stock set by the seller is the whole stock, it supersedes the items claimed by the nodes.
+            update.set(ProductConstants.AMOUNT_AVAILLABLE, productPojo.getAmountAvaillable()).unset(ProductConstants.ALLOTMENTS);
         }
         if (productPojo.getCost() != null) {
-            if (productPojo.getCost() % 5 != 0) {
-                throw new ConstraintViolationException("The cost should be multiple of 5", null);
-            }
-            updatedProduct.setCost(productPojo.getCost());
+            update.set(ProductConstants.COST, productPojo.getCost());
         }
-        return saveProduct(updatedProduct);
+        return applyUpdate(productPojo.getId(), username, productPojo.getVersion(), update, validationError(productPojo));
     }
 
     /**
@@ -94,21 +361,59 @@ public class ProductService {
      * @param id
      * @param username
      * @throws ProductDoesNotExistException In case the product does not exist or no product with the input id belongs to the input user.
+     * @throws ProductConflictException In case the product kept changing meanwhile.
      */
-    public void deleteProduct(String id, String username) throws ProductDoesNotExistException {
-        Product deletedProduct = findProductById(id);
-        if (deletedProduct == null || !deletedProduct.getSellerUserName().equalsIgnoreCase(username)) {
-            throw new ProductDoesNotExistException(String.format("No product with id %s exist for seller %s",
-                    id, username));
+    public void deleteProduct(String id, String username) throws ProductDoesNotExistException, ProductConflictException {
+        applyUpdate(id, username, null, new Update().set(ProductConstants.DELETED, true).unset(ProductConstants.ALLOTMENTS), null);
+    }
+
+    /**
+     * Applies the update to the product with the input id in case it belongs to the input user, retrying a bounded number of
+     * times in case the product changes between the read and the write.
+     * @param invalid the error of the update, thrown once the product is found to exist.
+     */
+    private Product applyUpdate(String id, String username, Long version, Update update, String invalid)
+            throws ProductDoesNotExistException, ProductConflictException {
+        stockReservationService.retire(id).block();
+        for (int attempt = 0; ; attempt++) {
+            // The retired items were put back to the stock, so the product is read from the database and not from the cache
+            // or a read that started before.
+            Product current = productRepository.findById(id).orElse(null);
+            if (current == null || !current.getSellerUserName().equalsIgnoreCase(username)) {
+                throw new ProductDoesNotExistException(String.format("No product with id %s exist for seller %s", id, username));
+            }
+            if (invalid != null) {
+                throw new ConstraintViolationException(invalid, null);
+            }
+            // The deletion or the restock is recorded by the same write, each attempt records the one of the product it read.
+            Update write = Update.fromDocument(new Document(update.getUpdateObject()));
+            OutboxEvent event = outboxService.changed(current, update);
+            if (event != null) {
+                outboxService.record(write, event);
+            }
+            Product updated = customProductRepository.updateVersioned(id, version != null ? version : current.getVersion(), write).block();
+            if (updated != null) {
+                cache(updated);
+                eventPublisher.publishEvent(new ProductChangedEvent(copyOf(updated)));
+                if (updated.isDeleted() && !current.isDeleted()) {
+                    transactionJournal.delete(username, id);
+                } else if (update.modifies(ProductConstants.AMOUNT_AVAILLABLE)) {
+                    transactionJournal.stock(username, id, updated.getAmountAvaillable());
+                }
+                return updated;
+            }
+            updateConflicts.increment();
+            // A stock set on a newer version would overwrite the purchases made meanwhile, so it is not retried.
+            if (version != null || update.modifies(ProductConstants.AMOUNT_AVAILLABLE) || attempt == updateRetries) {
+                failedUpdates.increment();
+                throw new ProductConflictException(String.format("Product %s was changed meanwhile, please try again", id));
+            }
         }
-        deletedProduct.setDeleted(true);
-        saveProduct(deletedProduct);
     }
 
     /**
-     * Performs product purchase operation buy the user with the input username. The operation includes verification that the purchase
-     * can be operated (enought deposit and product is in stock and not deleted). It also includes updating the deposit value for the user
-     * and the amount availlable value for the product.
+     * Performs product purchase operation buy the user with the input username, blocking until the purchase is done.
+     * See {@link #purchase(String, String)}.
      * @param id
      * @param username
      * @return
@@ -116,29 +421,135 @@ public class ProductService {
      * @throws InvalidPurchaseException
      */
     public Map<String, Object> buyProduct(String id, String username) throws ProductDoesNotExistException, InvalidPurchaseException {
-        Map<String, Object> result = new HashMap<>();
-        Product product = findProductById(id);
-        if (product == null || product.isDeleted()) {
-            throw new ProductDoesNotExistException(String.format("No Product %s availlable to Purchase", id));
-        }
-        if (product.getAmountAvaillable() == 0) {
-            throw new InvalidPurchaseException(String.format("Product %s is out of stock", id));
+        try {
+            return purchase(id, username).block();
+        } catch (RuntimeException e) {
+            Throwable cause = Exceptions.unwrap(e);
+            if (cause instanceof ProductDoesNotExistException) {
+                throw (ProductDoesNotExistException) cause;
+            }
+            if (cause instanceof InvalidPurchaseException) {
+                throw (InvalidPurchaseException) cause;
+            }
+            throw e;
         }
-        List<Integer> change = customUserDetailService.completePayment(username, product.getCost());
-        product.setAmountAvaillable(product.getAmountAvaillable() - 1);
-        product = saveProduct(product);
-        result.put(ProductConstants.PRODUCT, product);
-        result.put(ProductConstants.CHANGE, change);
-        return result;
     }
 
     /**
-     * Finds a product with the input id.
+     * Performs product purchase operation buy the user with the input username. The operation includes verification that the purchase
+     * can be operated (enought deposit and product is in stock and not deleted). It also includes updating the deposit value for the user
+     * and the amount availlable value for the product.
+     * The stock and the deposit are each taken by a single conditional update, so a successful purchase costs two round trips
+     * and concurrent buyers can neither oversell the product nor spend the same deposit. In case the payment fails, the taken
+     * item is put back to the stock. Purchases of hot products are served from the stock this node claimed ahead, see
+     * {@link StockReservationService}. No thread is held while waiting for the database. The product cache is updated with
+     * the stock left after the purchase.
+     * @param id
+     * @param username
+     * @return the product, the change and the deposit left to the user, or a ProductDoesNotExistException or
+     * InvalidPurchaseException error.
+     */
+    public Mono<Map<String, Object>> purchase(String id, String username) {
+        Mono<Tuple2<Product, Boolean>> stock = stockReservationService.reserve(id)
+                .map(product -> Tuples.of(product, true))
+                .switchIfEmpty(Mono.defer(() -> customProductRepository.decrementStock(id).map(product -> Tuples.of(product, false))))
+                .switchIfEmpty(Mono.defer(() -> this.<Tuple2<Product, Boolean>>purchaseRejection(id)));
+        return stock.flatMap(taken -> {
+            // Journaled before the payment, so a purchase interrupted by a crash is found in the journal.
+            transactionJournal.take(username, id);
+            OutboxEvent purchase = outboxService.purchase(username, taken.getT1());
+            return customUserDetailService.completePayment(username, taken.getT1().getCost(), purchase)
+                        .onErrorResume(e -> putBack(id, username, taken.getT2()).then(Mono.<Change>error(e)))
+                        .map(change -> {
+                            // Only published once paid, the stock of a purchase that is put back never reaches the listeners.
+                            cache(taken.getT1());
+                            eventPublisher.publishEvent(new ProductChangedEvent(copyOf(taken.getT1()), taken.getT2()));
+                            transactionJournal.purchase(username, id, taken.getT1().getCost(), change);
+                            purchaseHistoryService.record(username, taken.getT1(), change);
+                            salesRollupService.record(taken.getT1());
+                            Map<String, Object> result = new HashMap<>();
+                            result.put(ProductConstants.PRODUCT, taken.getT1());
+                            result.put(ProductConstants.CHANGE, change);
+                            // The payment takes the whole deposit and gives back what the product does not cost as the
+                            // change, so no deposit is ever left after a purchase.
+                            result.put(UserContants.DEPOSIT, 0);
+                            return result;
+                        });
+        });
+    }
+
+    /**
+     * Finds out why the stock of the product with the input id could not be taken. This is only reached on the failure path
+     * of the purchase.
+     * @param id
+     * @return
+     */
+    private <T> Mono<T> purchaseRejection(String id) {
+        return read(id)
+                .filter(product -> !product.isDeleted())
+                .map(product -> (Exception) new InvalidPurchaseException(String.format("Product %s is out of stock", id)))
+                .defaultIfEmpty(new ProductDoesNotExistException(String.format("No Product %s availlable to Purchase", id)))
+                .flatMap(e -> Mono.<T>error(e));
+    }
+
+    /**
+     * Puts back the item taken for a purchase that could not be completed.
+     * @param id
+     * @param username the buyer.
+     * @param reserved whether the item was taken from the allotment of this node or from the database.
+     * @return
+     */
+    private Mono<Void> putBack(String id, String username, boolean reserved) {
+        Mono<Void> putBack = reserved ? stockReservationService.release(id) : customProductRepository.incrementStock(id, 1).then();
+        return putBack.doOnSuccess(done -> transactionJournal.putBack(username, id))
+                .doFinally(signal -> productCache.invalidate(id));
+    }
+
+    /**
+     * Finds a product with the input id without blocking, from the cache if it was read lately.
+     * @param id
+     * @return
+     */
+    public Mono<Product> findProduct(String id) {
+        return Mono.defer(() -> {
+            Product cached = productCache.get(id);
+            if (cached != null) {
+                return Mono.just(copyOf(cached));
+            }
+            return read(id);
+        });
+    }
+
+    /**
+     * Finds a product with the input id, from the cache if it was read lately.
      * @param id
      * @return
      */
     public Product findProductById(String id) {
-        return productRepository.findById(id).orElse(null);
+        return findProduct(id).block();
+    }
+
+    /**
+     * Reads the product with the input id from the database and caches it. Concurrent reads of the same product share a single
+     * database read, the callers that joined a pending read are counted as collapsed reads.
+     * @param id
+     * @return a copy of the product for each caller, or empty in case the product does not exist.
+     */
+    private Mono<Product> read(String id) {
+        return Mono.defer(() -> {
+            Sinks.One<Product> sink = Sinks.one();
+            Mono<Product> shared = sink.asMono();
+            Mono<Product> pending = pendingReads.putIfAbsent(id, shared);
+            if (pending != null) {
+                collapsedReads.increment();
+                return pending.map(ProductService::copyOf);
+            }
+            customProductRepository.findById(id)
+                    .doOnNext(this::cache)
+                    .doFinally(signal -> pendingReads.remove(id, shared))
+                    .subscribe(sink::tryEmitValue, sink::tryEmitError, sink::tryEmitEmpty);
+            return shared.map(ProductService::copyOf);
+        });
     }
 
     /**
@@ -149,6 +560,18 @@ public class ProductService {
      * @throws ConstraintViolationException
      */
     public Product saveProduct(Product product) throws ConstraintViolationException {
-        return productRepository.save(product);
+        Product saved = productRepository.save(product);
+        cache(saved);
+        eventPublisher.publishEvent(new ProductChangedEvent(copyOf(saved)));
+        return saved;
+    }
+
+    private void cache(Product product) {
+        productCache.put(product.getId(), copyOf(product));
+    }
+
+    private static Product copyOf(Product product) {
+        return new Product(product.getId(), product.getProductName(), product.getAmountAvaillable(), product.getCost(),
+                product.getSellerUserName(), product.isDeleted(), product.getVersion());
     }
 }
@@ -0,0 +1,331 @@
+package com.omar.vendingmachine.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.event.ProductChangedEvent;
+import com.omar.vendingmachine.event.ProductVersions;
+import com.omar.vendingmachine.model.product.Product;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ChangeStreamOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import reactor.core.Disposable;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes the changes of the products (stock, cost, deletion) to the subscribed displays as server-sent events, so they do not
+ * have to poll the products. The changes are taken from the writes of this node, or from the change stream of the product
+ * collection when it is enabled and available, so the changes made by the other nodes are pushed too. The purchases served
+ * from the stock this node claimed ahead write no product, so they are always taken from this node, with the stock counting
+ * the items this node still holds, and a change stream event of the claim coming after them is skipped. The items claimed by
+ * the other nodes are not counted, so the stock pushed may be lower than the stock sellable until they are sold or given back.
+ * Every change is encoded once and kept in a ring buffer of the last changes, so a display that reconnects with the id of the
+ * last event it got is sent what it missed. The buffer and the subscriptions are handled by one thread, so the events reach
+ * every display in order, and every display has a bounded queue of events sent by a thread of its own while it has events
+ * queued, so the writes and the other displays never wait for a slow display. A display whose queue is full has fallen behind
+ * and is disconnected, so it reconnects and is sent what it missed, or a reload event.
+ */
+@Service
+public class ProductStreamService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProductStreamService.class);
+    private static final String PRODUCT_EVENT = "product";
+    private static final String RELOAD_EVENT = "reload";
+
+    @Autowired
+    ObjectMapper objectMapper;
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${vending.sse.buffer-size:1000}")
+    private int bufferSize;
+
+    @Value("${vending.sse.subscriber-queue-size:100}")
+    private int subscriberQueueSize;
+
+    @Value("${vending.sse.timeout-ms:1800000}")
+    private long timeout;
+
+    @Value("${vending.sse.change-stream:false}")
+    private boolean useChangeStream;
+
+    private StreamEvent[] buffer;
+    /**
+     * The ids start from the startup time, so an id from before a restart is never taken for one of the current events.
+     */
+    private final long firstId = System.currentTimeMillis() * 1000;
+    private long nextId = firstId;
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    private final ProductVersions versions = new ProductVersions();
+    /**
+     * The version of the last purchase of each product served from the stock claimed by this node. Only used by the
+     * dispatcher thread.
+     */
+    private final Map<String, Long> reservedVersions = new HashMap<>();
+    private volatile int subscriberCount;
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "product-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService sender = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "product-stream-send");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Disposable changeStream;
+    private volatile boolean changeStreamActive;
+
+    @PostConstruct
+    public void init() {
+        buffer = new StreamEvent[bufferSize];
+        Gauge.builder("vending.sse.subscribers", this, service -> service.subscriberCount).register(meterRegistry);
+        if (useChangeStream) {
+            changeStreamActive = true;
+            changeStream = reactiveMongoTemplate.changeStream(reactiveMongoTemplate.getCollectionName(Product.class),
+                            ChangeStreamOptions.builder().returnFullDocumentOnUpdate().build(), Product.class)
+                    .subscribe(event -> {
+                        if (event.getBody() != null) {
+                            publish(event.getBody(), false);
+                        }
+                    }, error -> {
+                        changeStreamActive = false;
+                        LOGGER.warn("Product change stream is not available, pushing the changes of this node only: {}", error.getMessage());
+                    });
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (changeStream != null) {
+            changeStream.dispose();
+        }
+        dispatcher.execute(() -> subscribers.forEach(subscriber -> subscriber.emitter.complete()));
+        dispatcher.shutdown();
+        sender.shutdown();
+    }
+
+    /**
+     * Subscribes to the changes of the products of the input seller and with the input ids.
+     * @param seller the seller of the products, or null for all the sellers.
+     * @param productIds the ids of the products, or empty for all the products.
+     * @param lastEventId the id of the last event received before reconnecting, or null for a new subscription. The events
+     *                    after it are sent first, in case they are not all kept anymore a reload event is sent instead.
+     * @return
+     */
+    public SseEmitter subscribe(String seller, Collection<String> productIds, String lastEventId) {
+        SseEmitter emitter = new SseEmitter(timeout);
+        Subscriber subscriber = new Subscriber(emitter, seller, productIds == null ? new HashSet<>() : new HashSet<>(productIds),
+                subscriberQueueSize);
+        emitter.onCompletion(() -> dispatcher.execute(() -> remove(subscriber)));
+        emitter.onTimeout(emitter::complete);
+        emitter.onError(error -> dispatcher.execute(() -> remove(subscriber)));
+        dispatcher.execute(() -> {
+            Long lastId = parseId(lastEventId);
+            if (lastId != null && !replay(subscriber, lastId)) {
+                return;
+            }
+            subscribers.add(subscriber);
+            subscriberCount = subscribers.size();
+        });
+        return emitter;
+    }
+
+    @EventListener
+    public void onProductChanged(ProductChangedEvent event) {
+        if (!changeStreamActive || event.isReserved()) {
+            publish(event.getProduct(), event.isReserved());
+        }
+    }
+
+    /**
+     * Sends a comment to every subscriber, so the connections are not closed by proxies for being idle and the closed ones are
+     * found.
+     */
+    @Scheduled(fixedDelayString = "${vending.sse.heartbeat-ms:15000}")
+    public void heartbeat() {
+        dispatcher.execute(() -> new ArrayList<>(subscribers).forEach(subscriber -> enqueue(subscriber, SseEmitter.event().comment("heartbeat"))));
+    }
+
+    /**
+     * Encodes the change and queues it for the subscribers.
+     * @param product the product after the change, or null in case the whole catalog changed.
+     * @param reserved whether the change was only made to the stock this node claimed ahead.
+     */
+    private void publish(Product product, boolean reserved) {
+        String json;
+        try {
+            json = product == null ? null : objectMapper.writeValueAsString(product);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("Could not encode the change of product {}", product.getId(), e);
+            return;
+        }
+        dispatcher.execute(() -> {
+            if (product == null) {
+                versions.clear();
+                reservedVersions.clear();
+            } else if (!versions.advance(product)) {
+                return;
+            } else if (reserved) {
+                reservedVersions.put(product.getId(), product.getVersion());
+            } else if (product.getVersion() != null && product.getVersion().equals(reservedVersions.get(product.getId()))) {
+                // The write of the claim, already pushed with the claimed items this node still holds counted in.
+                return;
+            }
+            StreamEvent event = new StreamEvent(nextId++, product == null ? null : product.getId(),
+                    product == null ? null : product.getSellerUserName(), json);
+            buffer[(int) (event.id % buffer.length)] = event;
+            new ArrayList<>(subscribers).forEach(subscriber -> {
+                if (subscriber.matches(event)) {
+                    enqueue(subscriber, event.toSse());
+                }
+            });
+        });
+    }
+
+    /**
+     * Queues the buffered events after the input id for the subscriber, or a reload event in case some of them are not kept
+     * anymore or they do not fit in the queue of the subscriber.
+     * @return whether the subscriber is still connected.
+     */
+    private boolean replay(Subscriber subscriber, long lastId) {
+        long oldest = Math.max(nextId - buffer.length, firstId);
+        if (lastId + 1 < oldest || lastId >= nextId || nextId - lastId - 1 > subscriberQueueSize) {
+            return enqueue(subscriber, SseEmitter.event().id(String.valueOf(nextId - 1)).name(RELOAD_EVENT).data(""));
+        }
+        for (long id = lastId + 1; id < nextId; id++) {
+            StreamEvent event = buffer[(int) (id % buffer.length)];
+            if (event != null && subscriber.matches(event) && !enqueue(subscriber, event.toSse())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queues the event for the subscriber, and starts sending the queue in case it is not being sent already. Called by the
+     * dispatcher thread only.
+     * @return whether the subscriber is still connected.
+     */
+    private boolean enqueue(Subscriber subscriber, SseEmitter.SseEventBuilder event) {
+        if (!subscriber.queue.offer(event)) {
+            // The display fell behind, it is disconnected so it reconnects with the id of the last event it got.
+            remove(subscriber);
+            subscriber.queue.clear();
+            subscriber.emitter.complete();
+            return false;
+        }
+        if (subscriber.sending.compareAndSet(false, true)) {
+            sender.execute(() -> drain(subscriber));
+        }
+        return true;
+    }
+
+    /**
+     * Sends the queued events to the subscriber until its queue is empty.
+     */
+    private void drain(Subscriber subscriber) {
+        do {
+            SseEmitter.SseEventBuilder event;
+            while ((event = subscriber.queue.poll()) != null) {
+                try {
+                    subscriber.emitter.send(event);
+                } catch (IOException | IllegalStateException e) {
+                    // The display went away, the emitter is completed and the subscriber removed. The queue is left marked as
+                    // being sent, so it is never sent again.
+                    dispatcher.execute(() -> remove(subscriber));
+                    subscriber.queue.clear();
+                    subscriber.emitter.completeWithError(e);
+                    return;
+                }
+            }
+            subscriber.sending.set(false);
+        } while (!subscriber.queue.isEmpty() && subscriber.sending.compareAndSet(false, true));
+    }
+
+    private void remove(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriberCount = subscribers.size();
+    }
+
+    private static Long parseId(String id) {
+        if (id == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(id.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class StreamEvent {
+        private final long id;
+        private final String productId;
+        private final String seller;
+        /**
+         * The product as JSON, or null in case the whole catalog changed.
+         */
+        private final String json;
+
+        StreamEvent(long id, String productId, String seller, String json) {
+            this.id = id;
+            this.productId = productId;
+            this.seller = seller;
+            this.json = json;
+        }
+
+        SseEmitter.SseEventBuilder toSse() {
+            return json == null
+                    ? SseEmitter.event().id(String.valueOf(id)).name(RELOAD_EVENT).data("")
+                    : SseEmitter.event().id(String.valueOf(id)).name(PRODUCT_EVENT).data(json);
+        }
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final String seller;
+        private final Set<String> productIds;
+        private final BlockingQueue<SseEmitter.SseEventBuilder> queue;
+        private final AtomicBoolean sending = new AtomicBoolean();
+
+        Subscriber(SseEmitter emitter, String seller, Set<String> productIds, int queueSize) {
+            this.emitter = emitter;
+            this.seller = seller;
+            this.productIds = productIds;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        boolean matches(StreamEvent event) {
+            if (event.json == null) {
+                return true;
+            }
+            return (seller == null || seller.equalsIgnoreCase(event.seller))
+                    && (productIds.isEmpty() || productIds.contains(event.productId));
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.omar.vendingmachine.service;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.omar.vendingmachine.constants.PurchaseConstants;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.model.purchase.Purchase;
+import com.omar.vendingmachine.pojo.Change;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the history of the purchases. A purchase is recorded by putting it on a bounded in-memory queue, so the purchase does
+ * not wait for the history to be written. The queue is drained in the background and written to the database in batches of one
+ * insert each. In case the queue is full the purchase is not recorded in the history, it is still in the transaction journal.
+ * A batch that could not be written is kept and written first by the next flushes, up to the configured number of retries.
+ * Every purchase gets its id when it is recorded, so the purchases a failed attempt already wrote are kept once by the retry.
+ */
+@Service
+public class PurchaseHistoryService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PurchaseHistoryService.class);
+
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${vending.purchases.queue-size:10000}")
+    private int queueSize;
+
+    @Value("${vending.purchases.batch-size:500}")
+    private int batchSize;
+
+    @Value("${vending.purchases.max-page-size:100}")
+    private int maxPageSize;
+
+    @Value("${vending.purchases.max-retries:5}")
+    private int maxRetries;
+
+    private BlockingQueue<Purchase> queue;
+    private List<Purchase> retry;
+    private int retries;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueSize);
+        Gauge.builder("vending.purchases.queued", queue, BlockingQueue::size).register(meterRegistry);
+        FunctionCounter.builder("vending.purchases.written", written, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.purchases.dropped", dropped, LongAdder::sum).register(meterRegistry);
+        FunctionCounter.builder("vending.purchases.failed", failed, LongAdder::sum).register(meterRegistry);
+        createCollection();
+    }
+
+    /**
+     * Creates the purchase collection as a time series collection, or as a regular collection in case the database does not
+     * support time series.
+     */
+    private void createCollection() {
+        if (!Boolean.TRUE.equals(reactiveMongoTemplate.collectionExists(Purchase.class).block())) {
+            reactiveMongoTemplate.createCollection(Purchase.class)
+                    .onErrorResume(e -> {
+                        LOGGER.warn("Purchase history is not kept in a time series collection: {}", e.getMessage());
+                        return reactiveMongoTemplate.createCollection(reactiveMongoTemplate.getCollectionName(Purchase.class));
+                    })
+                    .block();
+        }
+        reactiveMongoTemplate.indexOps(Purchase.class)
+                .ensureIndex(new Index().on(PurchaseConstants.USERNAME, Sort.Direction.ASC).on(PurchaseConstants.TIMESTAMP, Sort.Direction.DESC))
+                .block();
+    }
+
+    /**
+     * Writes the purchases still on the queue before the application stops.
+     */
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Records the purchase of the product by the user with the input username.
+     * @param username
+     * @param product the product as it was bought.
+     * @param change the change given back to the user.
+     */
+    public void record(String username, Product product, Change change) {
+        Purchase purchase = new Purchase(new ObjectId().toHexString(), username, product.getId(), product.getProductName(), product.getCost(),
+                change == null ? 0 : change.getAmount(), new Date());
+        if (!queue.offer(purchase)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes the batch that failed last, then the queued purchases in batches until the queue is empty. The flush stops at the
+     * first batch that fails, the batch is kept for the next flush and the queued purchases stay on the queue.
+     */
+    @Scheduled(fixedDelayString = "${vending.purchases.flush-ms:200}")
+    public synchronized void flush() {
+        if (retry != null) {
+            if (!write(retry, true)) {
+                retries++;
+                if (retries >= maxRetries) {
+                    failed.add(retry.size());
+                    LOGGER.error("Dropped {} purchases after {} retries", retry.size(), retries);
+                    retry = null;
+                }
+                return;
+            }
+            retry = null;
+        }
+        List<Purchase> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            if (!write(batch, false)) {
+                retry = batch;
+                retries = 0;
+                return;
+            }
+            batch = new ArrayList<>(batchSize);
+        }
+    }
+
+    /**
+     * Writes the batch, or on a retry the purchases of the batch that the failed attempts did not write.
+     */
+    private boolean write(List<Purchase> batch, boolean retried) {
+        try {
+            Mono<List<Purchase>> unwritten = retried ? unwritten(batch) : Mono.just(batch);
+            unwritten.flatMap(this::insert).block();
+            written.add(batch.size());
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not write {} purchases to the history", batch.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Finds the purchases of the batch that are not in the history yet. The time series collections do not keep the ids
+     * unique, so the purchases written already are looked up instead of relying on duplicate key errors.
+     */
+    private Mono<List<Purchase>> unwritten(List<Purchase> batch) {
+        List<String> ids = new ArrayList<>();
+        for (Purchase purchase : batch) {
+            ids.add(purchase.getId());
+        }
+        Query query = new Query(Criteria.where(PurchaseConstants.ID).in(ids));
+        query.fields().include(PurchaseConstants.ID);
+        return reactiveMongoTemplate.find(query, Purchase.class)
+                .map(Purchase::getId)
+                .collect(HashSet<String>::new, Set::add)
+                .map(writtenIds -> {
+                    List<Purchase> unwritten = new ArrayList<>();
+                    for (Purchase purchase : batch) {
+                        if (!writtenIds.contains(purchase.getId())) {
+                            unwritten.add(purchase);
+                        }
+                    }
+                    return unwritten;
+                });
+    }
+
+    /**
+     * Inserts the purchases with one unordered write. A purchase that is in the history already, with a duplicate key error in
+     * a regular collection, is taken as written.
+     */
+    private Mono<Void> insert(List<Purchase> purchases) {
+        if (purchases.isEmpty()) {
+            return Mono.empty();
+        }
+        List<Document> documents = new ArrayList<>();
+        for (Purchase purchase : purchases) {
+            Document document = new Document();
+            reactiveMongoTemplate.getConverter().write(purchase, document);
+            documents.add(document);
+        }
+        return reactiveMongoTemplate.getCollection(reactiveMongoTemplate.getCollectionName(Purchase.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .then()
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                            return Mono.error(e);
+                        }
+                    }
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Lists a page of the purchases of the user with the input username, the latest first.
+     * @param username
+     * @param before the next of the previous page, the time and the id of its last purchase, or null for the first page.
+     * @param limit the maximum number of purchases, capped to the configured maximum page size.
+     * @return the purchases of the page and the before to pass for the next page, null in case this is the last page.
+     * @throws IllegalArgumentException in case before is not the next of a page or the limit is not positive.
+     */
+    public Mono<Map<String, Object>> purchases(String username, String before, int limit) {
+        if (limit <= 0) {
+            return Mono.error(new IllegalArgumentException("The limit should be more than 0"));
+        }
+        int pageSize = Math.min(limit, maxPageSize);
+        Query query = new Query(Criteria.where(PurchaseConstants.USERNAME).is(username))
+                .with(Sort.by(Sort.Direction.DESC, PurchaseConstants.TIMESTAMP, PurchaseConstants.ID))
+                .limit(pageSize);
+        if (before != null) {
+            String[] cursor = before.split(":");
+            if (cursor.length != 2 || !cursor[0].matches("\\d+") || !ObjectId.isValid(cursor[1])) {
+                return Mono.error(new IllegalArgumentException(String.format("Invalid page %s", before)));
+            }
+            Date timestamp = new Date(Long.parseLong(cursor[0]));
+            query.addCriteria(new Criteria().orOperator(
+                    Criteria.where(PurchaseConstants.TIMESTAMP).lt(timestamp),
+                    Criteria.where(PurchaseConstants.TIMESTAMP).is(timestamp).and(PurchaseConstants.ID).lt(new ObjectId(cursor[1]))));
+        }
+        return reactiveMongoTemplate.find(query, Purchase.class)
+                .collectList()
+                .map(purchases -> {
+                    Map<String, Object> result = new HashMap<>();
+                    result.put(PurchaseConstants.PURCHASES, purchases);
+                    result.put(PurchaseConstants.NEXT, purchases.size() < pageSize ? null : next(purchases.get(purchases.size() - 1)));
+                    return result;
+                });
+    }
+
+    private static String next(Purchase purchase) {
+        return purchase.getTimestamp().getTime() + ":" + purchase.getId();
+    }
+
+    /**
+     * Deletes all the purchases --> for testing purposes only.
+     */
+    public void deleteAll() {
+        flush();
+        // Time series collections only allow deleting by buyer, so the collection is dropped and created again.
+        reactiveMongoTemplate.dropCollection(Purchase.class).block();
+        createCollection();
+    }
+}
@@ -3,35 +3,77 @@ package com.omar.vendingmachine.service;
 import com.omar.vendingmachine.model.user.ERole;
 import com.omar.vendingmachine.model.user.Role;
 import com.omar.vendingmachine.repository.RoleRepository;
-import com.omar.vendingmachine.repository.custom.CustomRoleRepository;
+import com.omar.vendingmachine.repository.custom.CustomUserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the roles in memory. There is one role per {@link ERole} value and the roles never change, so they are loaded once at
+ * startup, the missing ones are created, and looking a role up does not query the database.
+ */
 @Service
 public class RoleService {
-    @Autowired
-    CustomRoleRepository customRoleRepository;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoleService.class);
+
     @Autowired
     RoleRepository roleRepository;
+    @Autowired
+    CustomUserRepository customUserRepository;
+
+    private Map<ERole, Role> roles;
 
     /**
-     * Creates a role using the passed role name and passes it to the database in case the role does not already exist
-     * in the database.
+     * Loads the roles, creates the missing ones and embeds the roles of the users that still reference them.
+     */
+    @PostConstruct
+    public void init() {
+        Map<ERole, Role> roles = new EnumMap<>(ERole.class);
+        Map<String, Role> rolesById = new HashMap<>();
+        for (Role role : roleRepository.findAll()) {
+            rolesById.put(role.getId(), role);
+            for (ERole name : ERole.values()) {
+                if (name.name().equals(role.getName())) {
+                    roles.putIfAbsent(name, role);
+                }
+            }
+        }
+        for (ERole name : ERole.values()) {
+            if (!roles.containsKey(name)) {
+                Role role = roleRepository.save(new Role(null, name.name()));
+                roles.put(name, role);
+                rolesById.put(role.getId(), role);
+            }
+        }
+        this.roles = Collections.unmodifiableMap(roles);
+        Long migrated = customUserRepository.embedRoles(rolesById).block();
+        if (migrated != null && migrated > 0) {
+            LOGGER.info("Embedded the roles of {} users", migrated);
+        }
+    }
+
+    /**
+     * Makes sure the role with the passed role name exists. The roles are created at startup, so this does not need to
+     * write anything.
      * @param roleName
      */
     public void createRole(ERole roleName) {
-        if (findRoleByName(roleName) == null) {
-            Role role = new Role(null, roleName.name());
-            roleRepository.save(role);
-        }
+        findRoleByName(roleName);
     }
 
     /**
-     * Finds a product by its name.
+     * Finds a role by its name.
      * @param name
      * @return
      */
     public Role findRoleByName(ERole name) {
-        return roleRepository.findByName(name.name());
+        return roles.get(name);
     }
 }
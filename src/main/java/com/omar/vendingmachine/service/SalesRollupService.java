@@ -0,0 +1,210 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.constants.SalesConstants;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.model.sales.SalesRollup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the hourly and daily sales of each product. A purchase only increments the in-memory counters of its product and hour,
+ * the counters are written to the rollups in the background as increments, one per product and hour and one per product and
+ * day, so the database is written once per flush and product whatever the number of purchases. The hourly and the daily sales
+ * are counted apart, so a failed write only puts back the sales of its own period and the other one is not counted twice.
+ */
+@Service
+public class SalesRollupService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SalesRollupService.class);
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    @Autowired
+    ReactiveMongoTemplate reactiveMongoTemplate;
+
+    @Value("${vending.sales.max-report-size:1000}")
+    private int maxReportSize;
+
+    private final Map<SalesKey, SalesCounter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Counts the sale of one item of the product.
+     * @param product the product as it was bought.
+     */
+    public void record(Product product) {
+        long hour = System.currentTimeMillis() / HOUR * HOUR;
+        SalesCounter counter = counters.computeIfAbsent(new SalesKey(product.getId(), hour),
+                key -> new SalesCounter(product.getSellerUserName()));
+        counter.hourly.add(product.getCost());
+        counter.daily.add(product.getCost());
+    }
+
+    /**
+     * Writes the sales counted since the last flush to the rollups.
+     */
+    @Scheduled(fixedDelayString = "${vending.sales.flush-ms:5000}")
+    public synchronized void flush() {
+        long currentHour = System.currentTimeMillis() / HOUR * HOUR;
+        Flux.fromIterable(counters.entrySet())
+                .flatMap(entry -> {
+                    SalesKey key = entry.getKey();
+                    SalesCounter counter = entry.getValue();
+                    if (counter.hourly.isEmpty() && counter.daily.isEmpty()) {
+                        if (key.hour < currentHour - HOUR) {
+                            counters.remove(key, counter);
+                        }
+                        return Mono.empty();
+                    }
+                    return Flux.merge(
+                            write(key.productId, counter.seller, counter.hourly, SalesConstants.HOUR, key.hour),
+                            write(key.productId, counter.seller, counter.daily, SalesConstants.DAY, key.hour / DAY * DAY));
+                })
+                .blockLast();
+    }
+
+    @PreDestroy
+    public void close() {
+        flush();
+    }
+
+    /**
+     * Lists the rollups of the products of the seller with the input username over the input time range.
+     * @param seller
+     * @param period hour or day.
+     * @param from
+     * @param to
+     * @return the rollups in the order of their start, at most the configured maximum report size, or an
+     * IllegalArgumentException error in case the period is not hour or day or the range is empty.
+     */
+    public Mono<List<SalesRollup>> report(String seller, String period, Date from, Date to) {
+        if (!SalesConstants.HOUR.equals(period) && !SalesConstants.DAY.equals(period)) {
+            return Mono.error(new IllegalArgumentException(String.format("Invalid period %s, the period should be %s or %s",
+                    period, SalesConstants.HOUR, SalesConstants.DAY)));
+        }
+        if (!from.before(to)) {
+            return Mono.error(new IllegalArgumentException("The start of the report should be before its end"));
+        }
+        Query query = new Query(Criteria.where(SalesConstants.SELLER_USER_NAME).is(seller)
+                .and(SalesConstants.PERIOD).is(period)
+                .and(SalesConstants.START).gte(from).lt(to))
+                .with(Sort.by(SalesConstants.START))
+                .limit(maxReportSize);
+        return reactiveMongoTemplate.find(query, SalesRollup.class).collectList();
+    }
+
+    /**
+     * Deletes all the rollups --> for testing purposes only.
+     */
+    public void deleteAll() {
+        counters.clear();
+        reactiveMongoTemplate.remove(new Query(), SalesRollup.class).block();
+    }
+
+    /**
+     * Writes the sales of the period counted since the last flush to its rollup. In case the write fails, the sales are put
+     * back, so they are written by the next flush.
+     */
+    private Mono<Void> write(String productId, String seller, PeriodCounter counter, String period, long start) {
+        // Only what was read is taken off, so the sales counted meanwhile are written by the next flush.
+        long units = counter.units.sum();
+        long revenue = counter.revenue.sum();
+        if (units == 0) {
+            return Mono.empty();
+        }
+        counter.units.add(-units);
+        counter.revenue.add(-revenue);
+        return increment(productId, seller, period, start, units, revenue)
+                .then()
+                .onErrorResume(e -> {
+                    LOGGER.error("Could not write the {} sales of product {}", period, productId, e);
+                    counter.units.add(units);
+                    counter.revenue.add(revenue);
+                    return Mono.empty();
+                });
+    }
+
+    private Mono<?> increment(String productId, String seller, String period, long start, long units, long revenue) {
+        String id = String.format("%s:%s:%d", productId, period, start);
+        Update update = new Update()
+                .inc(SalesConstants.UNITS, units)
+                .inc(SalesConstants.REVENUE, revenue)
+                .setOnInsert(SalesConstants.PRODUCT_ID, productId)
+                .setOnInsert(SalesConstants.SELLER_USER_NAME, seller)
+                .setOnInsert(SalesConstants.PERIOD, period)
+                .setOnInsert(SalesConstants.START, new Date(start));
+        return reactiveMongoTemplate.upsert(new Query(Criteria.where("id").is(id)), update, SalesRollup.class);
+    }
+
+    private static class SalesKey {
+        private final String productId;
+        private final long hour;
+
+        SalesKey(String productId, long hour) {
+            this.productId = productId;
+            this.hour = hour;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof SalesKey)) {
+                return false;
+            }
+            SalesKey key = (SalesKey) other;
+            return hour == key.hour && productId.equals(key.productId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * productId.hashCode() + Long.hashCode(hour);
+        }
+    }
+
+    /**
+     * The sales of one product and hour not written yet. The counters are striped, so concurrent purchases of the same
+     * product do not compete on one counter.
+     */
+    private static class SalesCounter {
+        private final String seller;
+        private final PeriodCounter hourly = new PeriodCounter();
+        private final PeriodCounter daily = new PeriodCounter();
+
+        SalesCounter(String seller) {
+            this.seller = seller;
+        }
+    }
+
+    /**
+     * The sales of one product not written yet to the rollup of one period.
+     */
+    private static class PeriodCounter {
+        private final LongAdder units = new LongAdder();
+        private final LongAdder revenue = new LongAdder();
+
+        void add(int cost) {
+            units.increment();
+            revenue.add(cost);
+        }
+
+        boolean isEmpty() {
+            return units.sum() == 0;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.repository.custom.CustomProductRepository;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves purchases of hot products from stock that is claimed ahead from the database. A product becomes hot once it is bought
+ * more than the configured times per second. For a hot product, this node claims an allotment of items with a single conditional
+ * update and then sells them from striped in-memory counters, so the product document is written once per allotment instead of
+ * once per purchase. The items are taken out of the database stock at claim time, so no two nodes can sell the same item.
+ * Whatever is left unsold is given back to the database once the product cools down, the allotment gets old, the product is
+ * changed by its seller or the application stops. Every claim is recorded in the product, and a seller setting the stock or
+ * deleting the product drops the claims of all the nodes, as the stock set by the seller is the whole stock. The items of a
+ * dropped claim are then neither sold nor given back: every item is only sold once its claim is found still recorded, with a
+ * read of the product that competes with no write, and giving them back only succeeds while the claim is still recorded.
+ */
+@Service
+public class StockReservationService {
+    private static final int STRIPES = 8;
+
+    @Autowired
+    CustomProductRepository customProductRepository;
+
+    @Value("${vending.stock.hot-threshold:50}")
+    private int hotThreshold;
+
+    @Value("${vending.stock.allotment-size:20}")
+    private int allotmentSize;
+
+    @Value("${vending.stock.allotment-max-age-ms:5000}")
+    private long allotmentMaxAge;
+
+    private volatile Map<String, LongAdder> demand = new ConcurrentHashMap<>();
+    private volatile Set<String> hotProducts = Collections.emptySet();
+    private final Map<String, StockAllotment> allotments = new ConcurrentHashMap<>();
+
+    /**
+     * Reserves one item of the product with the input id from the allotment of this node.
+     * @param id
+     * @return a snapshot of the product with the item reserved, or empty in case the product is not hot or no allotment could
+     * be claimed for it, the purchase then has to take the stock from the database directly.
+     */
+    public Mono<Product> reserve(String id) {
+        return Mono.defer(() -> {
+            demand.computeIfAbsent(id, key -> new LongAdder()).increment();
+            if (!hotProducts.contains(id)) {
+                return Mono.empty();
+            }
+            StockAllotment allotment = allotments.computeIfAbsent(id, key -> new StockAllotment());
+            Product product = allotment.product;
+            if (product != null && product.isDeleted()) {
+                return Mono.empty();
+            }
+            String claimId = allotment.claimId;
+            if (allotment.take()) {
+                return verify(allotment, id, claimId);
+            }
+            return refill(allotment, id);
+        });
+    }
+
+    /**
+     * Sells the item taken from the allotment only in case its claim is still recorded in the product. Otherwise the claim
+     * was superseded by the seller on any node, the allotment is dropped and the purchase takes the stock from the database.
+     * @param claimId the claim of the allotment when the item was taken, a refill meanwhile is checked as a superseded claim.
+     */
+    private Mono<Product> verify(StockAllotment allotment, String id, String claimId) {
+        Product snapshot = allotment.snapshot();
+        return customProductRepository.hasClaim(id, claimId)
+                .flatMap(recorded -> {
+                    if (recorded) {
+                        return Mono.just(snapshot);
+                    }
+                    if (!allotments.remove(id, allotment)) {
+                        return Mono.<Product>empty();
+                    }
+                    // The claim of a refill made meanwhile may still be recorded, its items are given back then.
+                    return giveBack(id, allotment.claimId, allotment.close()).then(Mono.<Product>empty());
+                });
+    }
+
+    /**
+     * Gives back an item that was reserved by {@link #reserve(String)} for a purchase that could not be completed. In case the
+     * allotment was retired meanwhile, the item is put back to the stock of the product directly.
+     * @param id
+     * @return
+     */
+    public Mono<Void> release(String id) {
+        return Mono.defer(() -> {
+            StockAllotment allotment = allotments.get(id);
+            if (allotment != null && allotment.put()) {
+                return Mono.empty();
+            }
+            return customProductRepository.incrementStock(id, 1).then();
+        });
+    }
+
+    /**
+     * Gives the unsold items of the product with the input id back to the database and drops the allotment. This is to be
+     * called before the product is changed, so the next allotment is claimed from the changed product.
+     * @param id
+     * @return
+     */
+    public Mono<Void> retire(String id) {
+        return Mono.defer(() -> {
+            StockAllotment allotment = allotments.remove(id);
+            if (allotment == null) {
+                return Mono.empty();
+            }
+            return giveBack(id, allotment.claimId, allotment.close());
+        });
+    }
+
+    /**
+     * Gives all the unsold items back to the database.
+     */
+    @PreDestroy
+    public void retireAll() {
+        Flux.fromIterable(allotments.keySet()).flatMap(this::retire).blockLast();
+    }
+
+    /**
+     * Decides which products are hot using the purchases of the last window, gives back the allotments of the products that
+     * cooled down or that were held for too long and drops the allotments whose claims were superseded.
+     */
+    @Scheduled(fixedDelayString = "${vending.stock.window-ms:1000}")
+    public void sweep() {
+        Map<String, LongAdder> lastWindow = demand;
+        demand = new ConcurrentHashMap<>();
+        Set<String> hot = new HashSet<>();
+        lastWindow.forEach((id, purchases) -> {
+            if (purchases.sum() >= hotThreshold) {
+                hot.add(id);
+            }
+        });
+        hotProducts = hot;
+        long now = System.currentTimeMillis();
+        Flux.fromIterable(allotments.entrySet())
+                .filter(entry -> !hot.contains(entry.getKey()) || now - entry.getValue().claimedAt > allotmentMaxAge)
+                .flatMap(entry -> retire(entry.getKey()))
+                .blockLast();
+        dropSuperseded();
+    }
+
+    /**
+     * Drops the allotments whose claims are not recorded in their products anymore, with one query for all the allotments, so
+     * the allotments of products that are not bought anymore are not held until they get old. Their unsold items are not given
+     * back, the stock set by the seller already is the whole stock.
+     */
+    private void dropSuperseded() {
+        if (allotments.isEmpty()) {
+            return;
+        }
+        Map<String, Set<String>> claims = customProductRepository.findClaims(new HashSet<>(allotments.keySet())).block();
+        allotments.forEach((id, allotment) -> {
+            String claimId = allotment.claimId;
+            Set<String> recorded = claims == null ? null : claims.get(id);
+            if (claimId != null && (recorded == null || !recorded.contains(claimId)) && allotments.remove(id, allotment)) {
+                allotment.close();
+            }
+        });
+    }
+
+    /**
+     * Claims a new allotment from the database. Only one purchase refills an allotment at a time, the purchases that come
+     * meanwhile take the stock from the database directly instead of waiting.
+     */
+    private Mono<Product> refill(StockAllotment allotment, String id) {
+        if (!allotment.refilling.compareAndSet(false, true)) {
+            return Mono.empty();
+        }
+        String claimId = new ObjectId().toHexString();
+        // The previous claim is sold out, so it is dropped with the new claim.
+        return customProductRepository.claimStock(id, allotmentSize, claimId, allotment.claimId)
+                .flatMap(claimed -> {
+                    if (allotment.fill(claimed, claimId, allotmentSize - 1)) {
+                        return Mono.just(allotment.snapshot());
+                    }
+                    // The allotment was retired while claiming, this purchase keeps one item and the rest goes back.
+                    return giveBack(id, claimId, allotmentSize - 1).thenReturn(claimed);
+                })
+                // Not enough stock left to claim a whole allotment, the last items are sold from the database directly.
+                .doFinally(signal -> allotment.refilling.set(false));
+    }
+
+    /**
+     * Gives the unsold items of the claim back to the database and drops the claim, unless it was superseded.
+     */
+    private Mono<Void> giveBack(String id, String claimId, int unsold) {
+        if (claimId == null) {
+            return Mono.empty();
+        }
+        return customProductRepository.returnStock(id, claimId, unsold).then();
+    }
+
+    /**
+     * Items of one product claimed by this node. The items are spread over several counters, so concurrent purchases of the
+     * same product do not all compete on one counter.
+     */
+    private static class StockAllotment {
+        private final AtomicInteger[] stripes = new AtomicInteger[STRIPES];
+        private volatile Product product;
+        private volatile String claimId;
+        private volatile long claimedAt = System.currentTimeMillis();
+        private final AtomicBoolean refilling = new AtomicBoolean();
+        private boolean closed;
+
+        StockAllotment() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicInteger();
+            }
+        }
+
+        boolean take() {
+            int start = (int) Thread.currentThread().getId();
+            for (int i = 0; i < STRIPES; i++) {
+                AtomicInteger stripe = stripes[(start + i) & (STRIPES - 1)];
+                int items = stripe.get();
+                while (items > 0) {
+                    if (stripe.compareAndSet(items, items - 1)) {
+                        return true;
+                    }
+                    items = stripe.get();
+                }
+            }
+            return false;
+        }
+
+        synchronized boolean put() {
+            if (closed) {
+                return false;
+            }
+            stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet();
+            return true;
+        }
+
+        synchronized boolean fill(Product claimed, String claim, int items) {
+            if (closed) {
+                return false;
+            }
+            product = claimed;
+            claimId = claim;
+            claimedAt = System.currentTimeMillis();
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i].addAndGet(items / STRIPES + (i < items % STRIPES ? 1 : 0));
+            }
+            return true;
+        }
+
+        synchronized int close() {
+            closed = true;
+            int unsold = 0;
+            for (AtomicInteger stripe : stripes) {
+                unsold += stripe.getAndSet(0);
+            }
+            return unsold;
+        }
+
+        int remaining() {
+            int remaining = 0;
+            for (AtomicInteger stripe : stripes) {
+                remaining += stripe.get();
+            }
+            return remaining;
+        }
+
+        /**
+         * Returns a copy of the claimed product where the amount availlable also counts the items this node still holds.
+         */
+        Product snapshot() {
+            Product claimed = product;
+            Product snapshot = new Product();
+            snapshot.setId(claimed.getId());
+            snapshot.setProductName(claimed.getProductName());
+            snapshot.setCost(claimed.getCost());
+            snapshot.setSellerUserName(claimed.getSellerUserName());
+            snapshot.setDeleted(claimed.isDeleted());
+            snapshot.setVersion(claimed.getVersion());
+            snapshot.setAmountAvaillable(claimed.getAmountAvaillable() + remaining());
+            return snapshot;
+        }
+    }
+}
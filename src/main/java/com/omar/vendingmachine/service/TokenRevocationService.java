@@ -0,0 +1,86 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.event.TokensRevokedEvent;
+import com.omar.vendingmachine.model.user.TokenRevocation;
+import com.omar.vendingmachine.repository.TokenRevocationRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the revocation list of the issued tokens. A revocation covers all the tokens issued to a user before it, so logging out
+ * of all sessions revokes every token of the user at once. The list is held in memory, so checking a token never queries the
+ * database, and it is reloaded periodically to pick up the revocations made on other nodes, so another node keeps accepting a
+ * revoked token for up to one refresh interval. Every new revocation is published as a {@link TokensRevokedEvent}, so the
+ * sessions opened with the revoked tokens are closed. The revocations older than the lifetime of the tokens are pruned on
+ * reload, as every token they cover has expired.
+ */
+@Service
+public class TokenRevocationService {
+    @Autowired
+    TokenRevocationRepository tokenRevocationRepository;
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    @Value("${vending.jwt.expiration-ms:3600000}")
+    private long expiration;
+
+    private volatile Map<String, Long> revokedBefore = new ConcurrentHashMap<>();
+
+    /**
+     * Loads the revocation list from the database.
+     */
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${vending.jwt.revocation-refresh-ms:5000}")
+    public void reload() {
+        long expired = System.currentTimeMillis() - expiration;
+        tokenRevocationRepository.deleteByRevokedBeforeLessThan(new Date(expired)).block();
+        Map<String, Long> loaded = new ConcurrentHashMap<>();
+        tokenRevocationRepository.findAll()
+                .doOnNext(revocation -> loaded.put(revocation.getUsername(), revocation.getRevokedBefore().getTime()))
+                .blockLast();
+        // Revocations made on this node while loading are kept.
+        Map<String, Long> previous = revokedBefore;
+        previous.forEach((username, time) -> {
+            if (time >= expired) {
+                loaded.merge(username, time, Math::max);
+            }
+        });
+        revokedBefore = loaded;
+        loaded.forEach((username, time) -> {
+            Long known = previous.get(username);
+            if (known == null || known < time) {
+                eventPublisher.publishEvent(new TokensRevokedEvent(username, time));
+            }
+        });
+    }
+
+    /**
+     * Revokes all the tokens issued to the user with the input username until now.
+     * @param username
+     */
+    public void revokeAll(String username) {
+        long now = System.currentTimeMillis();
+        revokedBefore.merge(username, now, Math::max);
+        tokenRevocationRepository.save(new TokenRevocation(username, new Date(now))).block();
+        eventPublisher.publishEvent(new TokensRevokedEvent(username, now));
+    }
+
+    /**
+     * Checks whether a token issued to the user at the input time is revoked.
+     * @param username
+     * @param issuedAt the issue time of the token, to the millisecond.
+     * @return
+     */
+    public boolean isRevoked(String username, Date issuedAt) {
+        Long revoked = revokedBefore.get(username);
+        return revoked != null && issuedAt.getTime() < revoked;
+    }
+}
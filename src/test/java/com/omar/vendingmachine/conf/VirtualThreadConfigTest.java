@@ -0,0 +1,56 @@
+package com.omar.vendingmachine.conf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles({"test", "virtual-threads"})
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@Import(VirtualThreadConfigTest.HandlingThreadController.class)
+public class VirtualThreadConfigTest {
+    @Autowired
+    private TestRestTemplate restTemplate;
+
+    @Test
+    void testRequestsRunOnVirtualThreadsWhenSupported() {
+        //Given, the application is started with the virtual-threads profile.
+        ExecutorService virtualThreads = VirtualThreadConfig.newVirtualThreadExecutor();
+        boolean supported = virtualThreads != null;
+        if (supported) {
+            virtualThreads.shutdown();
+        }
+
+        //When, sending a request to the application.
+        String virtual = restTemplate.getForObject("/product/handling-thread", String.class);
+
+        //Then, the request runs on a virtual thread in case the running Java version has them, otherwise on the Tomcat pool.
+        assertThat(Boolean.valueOf(virtual)).isEqualTo(supported);
+    }
+
+    /**
+     * Tells whether the request is handled by a virtual thread. It is mapped under the product reads, which need no login.
+     */
+    @RestController
+    static class HandlingThreadController {
+        @GetMapping("/product/handling-thread")
+        public String isVirtual() throws Exception {
+            try {
+                return String.valueOf(Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+            } catch (NoSuchMethodException e) {
+                return "false";
+            }
+        }
+    }
+}
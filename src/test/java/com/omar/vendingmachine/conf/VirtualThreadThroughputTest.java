@@ -0,0 +1,66 @@
+package com.omar.vendingmachine.conf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledForJreRange;
+import org.junit.jupiter.api.condition.JRE;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class VirtualThreadThroughputTest {
+    private static final int TOMCAT_DEFAULT_MAX_THREADS = 200;
+    private static final int CONCURRENT_REQUESTS = 2000;
+    private static final long ROUND_TRIP_MILLIS = 50;
+
+    /**
+     * Only runs on the Java versions newer than the ones JUnit knows, i.e. after Java 18. Java 19 and 20 only have virtual
+     * threads as a preview, so the test is also skipped in case the executor cannot be created.
+     * @throws Exception
+     */
+    @Test
+    @EnabledForJreRange(min = JRE.OTHER)
+    void testVirtualThreadsThroughputAtHighConcurrency() throws Exception {
+        //Given, the running Java version supports virtual threads.
+        ExecutorService virtualThreads = VirtualThreadConfig.newVirtualThreadExecutor();
+        assumeTrue(virtualThreads != null, "virtual threads need Java 21 or later");
+
+        //When, the same number of concurrent requests, each blocking on a database round trip, run on the default Tomcat pool
+        //and on the executor the virtual-threads profile gives to Tomcat.
+        double pooledThroughput = throughput(Executors.newFixedThreadPool(TOMCAT_DEFAULT_MAX_THREADS));
+        double virtualThroughput = throughput(virtualThreads);
+
+        //Then, the virtual threads serve the requests several times faster, as the pool can only wait on 200 round trips at once.
+        assertThat(virtualThroughput).isGreaterThan(pooledThroughput * 3);
+    }
+
+    /**
+     * Runs the concurrent requests on the executor and returns the completed requests per second.
+     * @param executor
+     * @return
+     * @throws Exception
+     */
+    private static double throughput(ExecutorService executor) throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> requests = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_REQUESTS; i++) {
+            requests.add(executor.submit(() -> {
+                Thread.sleep(ROUND_TRIP_MILLIS);
+                return null;
+            }));
+        }
+        for (Future<?> request : requests) {
+            request.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        return CONCURRENT_REQUESTS / (elapsed / 1_000_000_000.0);
+    }
+}
@@ -1,7 +1,12 @@
 package com.omar.vendingmachine.controller;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.model.user.CredentialChange;
 import com.omar.vendingmachine.model.user.ERole;
 import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.repository.CredentialChangeRepository;
+import com.omar.vendingmachine.security.VerifiedCredentialCache;
 import com.omar.vendingmachine.service.CustomUserDetailService;
 import com.omar.vendingmachine.service.ProductService;
 import com.omar.vendingmachine.service.RoleService;
@@ -19,17 +24,23 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
 import java.util.Base64;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
+import static com.omar.vendingmachine.utils.MvcTestUtils.performAsync;
 import static com.omar.vendingmachine.utils.UserTestUtils.createBaiscUser;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 
 @ActiveProfiles("test")
 @RunWith(SpringRunner.class)
 @SpringBootTest
 @AutoConfigureMockMvc
 public class AuthControllerTest {
+    private static ObjectMapper mapper = new ObjectMapper();
     @Autowired
     private MockMvc mockMvc;
     @Autowired
@@ -38,6 +49,10 @@ public class AuthControllerTest {
     private CustomUserDetailService customUserDetailService;
     @Autowired
     private RoleService roleService;
+    @Autowired
+    private VerifiedCredentialCache verifiedCredentialCache;
+    @Autowired
+    private CredentialChangeRepository credentialChangeRepository;
 
 
     @BeforeEach
@@ -112,4 +127,60 @@ public class AuthControllerTest {
         assertThat(result.getResponse().getStatus()).isEqualTo(401);
     }
 
+    @Test
+    void testTokenAuthorizesRequestsUntilLogoutAll() throws Exception {
+        //Given, a buyer is registered and logged in, holding the token issued at login.
+        createBaiscUser(mockMvc, ERole.BUYER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        MvcResult login = mockMvc.perform(post("/user/login").header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        String token = (String) mapper.readValue(login.getResponse().getContentAsString(), HashMap.class).get(UserContants.TOKEN);
+        String bearer = UserContants.BEARER + " " + token;
+
+        //When, depositing using only the token.
+        MvcResult deposit = performAsync(mockMvc, put("/user/deposit/5").header(HttpHeaders.AUTHORIZATION, bearer));
+
+        //Then, the request is authorized.
+        assertThat(deposit.getResponse().getStatus()).isEqualTo(200);
+        assertThat(customUserDetailService.findByUsername("user").getDeposit()).isEqualTo(5);
+
+        //When, logging out of all sessions and using the token again.
+        mockMvc.perform(get("/user/logout/all").header(HttpHeaders.AUTHORIZATION, bearer)).andReturn();
+        MvcResult revoked = performAsync(mockMvc, put("/user/deposit/5").header(HttpHeaders.AUTHORIZATION, bearer));
+
+        //Then, the token is revoked and the request is unauthorized.
+        assertThat(revoked.getResponse().getStatus()).isEqualTo(401);
+        assertThat(customUserDetailService.findByUsername("user").getDeposit()).isEqualTo(5);
+    }
+
+    @Test
+    void testSavingUserForgetsVerifiedCredentialsOnAllNodes() throws Exception {
+        //Given, a buyer whose credentials were verified by a request.
+        createBaiscUser(mockMvc, ERole.BUYER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        performAsync(mockMvc, put("/user/deposit/5").header(HttpHeaders.AUTHORIZATION, auth));
+        assertThat(verifiedCredentialCache.get("user", "password")).isNotNull();
+
+        //When, the user is saved, e.g. with a new password or new roles.
+        customUserDetailService.saveUser(customUserDetailService.findByUsername("user"));
+
+        //Then, the verified credentials are forgotten and the change is recorded for the other nodes.
+        assertThat(verifiedCredentialCache.get("user", "password")).isNull();
+        assertThat(credentialChangeRepository.findById("user").block()).isNotNull();
+    }
+
+    @Test
+    void testCredentialChangeOnAnotherNodeForgetsVerifiedCredentials() throws Exception {
+        //Given, a buyer whose credentials were verified by a request.
+        createBaiscUser(mockMvc, ERole.BUYER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        performAsync(mockMvc, put("/user/deposit/5").header(HttpHeaders.AUTHORIZATION, auth));
+        assertThat(verifiedCredentialCache.get("user", "password")).isNotNull();
+
+        //When, another node records a change of the credentials of the user and the changes are reloaded.
+        credentialChangeRepository.save(new CredentialChange("user", new Date(System.currentTimeMillis() + 1000))).block();
+        verifiedCredentialCache.reload();
+
+        //Then, the verified credentials are forgotten.
+        assertThat(verifiedCredentialCache.get("user", "password")).isNull();
+    }
 }
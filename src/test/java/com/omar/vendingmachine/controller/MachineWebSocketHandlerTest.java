@@ -0,0 +1,146 @@
+package com.omar.vendingmachine.controller;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.constants.ProductConstants;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.model.user.ERole;
+import com.omar.vendingmachine.pojo.ProductPojo;
+import com.omar.vendingmachine.service.CoinInventoryService;
+import com.omar.vendingmachine.service.CustomUserDetailService;
+import com.omar.vendingmachine.service.ProductService;
+import com.omar.vendingmachine.service.RoleService;
+import com.omar.vendingmachine.service.TokenRevocationService;
+import com.omar.vendingmachine.utils.UserTestUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.net.URI;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@AutoConfigureMockMvc
+public class MachineWebSocketHandlerTest {
+    @LocalServerPort
+    private int port;
+    @Autowired
+    private MockMvc mockMvc;
+    @Autowired
+    private ProductService productService;
+    @Autowired
+    private CustomUserDetailService customUserDetailService;
+    @Autowired
+    private RoleService roleService;
+    @Autowired
+    private CoinInventoryService coinInventoryService;
+    @Autowired
+    private TokenRevocationService tokenRevocationService;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+
+    @BeforeEach
+    void initEach() throws Exception {
+        productService.deleteAll();
+        customUserDetailService.deleteAll();
+        UserTestUtils.createRoles(roleService);
+        Map<Integer, Integer> coins = new HashMap<>();
+        for (Integer coin : UserContants.DEPOSIT_AMOUNTS) {
+            coins.put(coin, 100);
+        }
+        coinInventoryService.fill(coins);
+        UserTestUtils.createCustomizedUser(mockMvc, "buyer", "password", ERole.BUYER);
+    }
+
+    @Test
+    void testCoinBuyAndResetCommandsAreAnswered() throws Exception {
+        //Given, a product costing 5 and a machine connected as the buyer.
+        ProductPojo productPojo = new ProductPojo();
+        productPojo.setProductName("product");
+        productPojo.setAmountAvaillable(10);
+        productPojo.setCost(5);
+        Product product = productService.createProduct(productPojo, "seller");
+        WebSocketSession session = connect();
+
+        //When, inserting a coin of 10, buying the product, inserting a coin of 5 and resetting the deposit.
+        JsonNode coin = command(session, "{\"type\":\"coin\",\"amount\":10}");
+        JsonNode purchase = command(session, "{\"type\":\"buy\",\"productId\":\"" + product.getId() + "\"}");
+        JsonNode secondCoin = command(session, "{\"type\":\"coin\",\"amount\":5}");
+        JsonNode reset = command(session, "{\"type\":\"reset\"}");
+
+        //Then, every command is answered with the deposit it left, and the purchase with the product and the change.
+        assertThat(coin.get("type").asText()).isEqualTo("balance");
+        assertThat(coin.get(UserContants.DEPOSIT).asInt()).isEqualTo(10);
+        assertThat(purchase.get("type").asText()).isEqualTo("purchase");
+        assertThat(purchase.get(ProductConstants.PRODUCT).get("id").asText()).isEqualTo(product.getId());
+        assertThat(purchase.get(ProductConstants.CHANGE).size()).isEqualTo(1);
+        assertThat(purchase.get(UserContants.DEPOSIT).asInt()).isEqualTo(0);
+        assertThat(secondCoin.get(UserContants.DEPOSIT).asInt()).isEqualTo(5);
+        assertThat(reset.get("type").asText()).isEqualTo("balance");
+        assertThat(reset.get(UserContants.DEPOSIT).asInt()).isEqualTo(0);
+        session.close();
+    }
+
+    @Test
+    void testSessionIsClosedOnceTheTokensAreRevoked() throws Exception {
+        //Given, a machine connected as the buyer.
+        WebSocketSession session = connect();
+
+        //When, the tokens of the buyer are revoked, e.g. by logging out of all the sessions.
+        tokenRevocationService.revokeAll("buyer");
+
+        //Then, the session is closed.
+        for (int attempt = 0; attempt < 50 && session.isOpen(); attempt++) {
+            Thread.sleep(100);
+        }
+        assertThat(session.isOpen()).isFalse();
+    }
+
+    private WebSocketSession connect() throws Exception {
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        headers.add(HttpHeaders.AUTHORIZATION, "Basic " + Base64.getEncoder().encodeToString("buyer:password".getBytes()));
+        return new StandardWebSocketClient().doHandshake(new TextWebSocketHandler() {
+            @Override
+            protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+                replies.add(message.getPayload());
+            }
+        }, headers, URI.create("ws://localhost:" + port + "/user/ws")).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sends the command and waits for its reply.
+     * @param session
+     * @param command
+     * @return the reply.
+     * @throws Exception
+     */
+    private JsonNode command(WebSocketSession session, String command) throws Exception {
+        session.sendMessage(new TextMessage(command));
+        String reply = replies.poll(5, TimeUnit.SECONDS);
+        assertThat(reply).isNotNull();
+        return mapper.readTree(reply);
+    }
+}
@@ -1,32 +1,56 @@
 package com.omar.vendingmachine.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.omar.vendingmachine.constants.ProductConstants;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.exceptions.InvalidPurchaseException;
 import com.omar.vendingmachine.model.product.Product;
 import com.omar.vendingmachine.model.user.ERole;
 import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.outbox.OutboxPublisher;
+import com.omar.vendingmachine.repository.custom.CustomProductRepository;
+import com.omar.vendingmachine.pojo.ProductPojo;
+import com.omar.vendingmachine.service.CoinInventoryService;
 import com.omar.vendingmachine.service.CustomUserDetailService;
 import com.omar.vendingmachine.service.ProductService;
 import com.omar.vendingmachine.service.RoleService;
+import com.omar.vendingmachine.service.SalesRollupService;
+import com.omar.vendingmachine.service.StockReservationService;
 import com.omar.vendingmachine.utils.UserTestUtils;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
+import static com.omar.vendingmachine.utils.MvcTestUtils.performAsync;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
 
@@ -44,12 +68,30 @@ public class ProductControllerTest {
     private CustomUserDetailService customUserDetailService;
     @Autowired
     private RoleService roleService;
+    @Autowired
+    private SalesRollupService salesRollupService;
+    @Autowired
+    private OutboxPublisher outboxPublisher;
+    @Value("${vending.outbox.file}")
+    private String outboxFile;
+    @Autowired
+    private CoinInventoryService coinInventoryService;
+    @Autowired
+    private CustomProductRepository customProductRepository;
+    @Autowired
+    private StockReservationService stockReservationService;
+    @Value("${vending.stock.hot-threshold:50}")
+    private int hotThreshold;
+    @Value("${vending.stock.allotment-size:20}")
+    private int allotmentSize;
 
     @BeforeEach
     void initEach() {
         productService.deleteAll();
         customUserDetailService.deleteAll();
+        salesRollupService.deleteAll();
         UserTestUtils.createRoles(roleService);
+        fillCoins(100);
     }
 
     @Test
@@ -145,12 +187,197 @@ public class ProductControllerTest {
 
         //When sending a request to buy the product using the correct credentials of the buyer account.
         String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
-        MvcResult result = mockMvc.perform(post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the product is purchsed, the change is returned to the buyer, the amountavaillable of the product is reduced.
         assertThat(result.getResponse().getStatus()).isEqualTo(200);
         assertThat(productService.findProductById(id).getAmountAvaillable()).isEqualTo(9);
-        assertThat(mapper.readValue(result.getResponse().getContentAsString(), HashMap.class).get("change").toString()).isEqualTo("[50, 20, 20]");
+        assertThat(mapper.readValue(result.getResponse().getContentAsString(), HashMap.class).get("change").toString()).isEqualTo("{50=1, 20=2}");
+    }
+
+    @Test
+    void testSalesReportReadsHourlyAndDailyRollups() throws Exception {
+        //Given, a product that was bought twice.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        UserTestUtils.createCustomizedUser(mockMvc, "buyerUser", "password", ERole.BUYER);
+        String id = productService.listAll().get(0).getId();
+        String buyerAuth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
+        for (int i = 0; i < 2; i++) {
+            User user = customUserDetailService.findByUsername("buyerUser");
+            user.setDeposit(10);
+            customUserDetailService.saveUser(user);
+            performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, buyerAuth));
+        }
+        salesRollupService.flush();
+
+        //When, the seller asks for the hourly and the daily sales.
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        MvcResult hourly = performAsync(mockMvc, get("/product/sales").header(HttpHeaders.AUTHORIZATION, auth));
+        MvcResult daily = performAsync(mockMvc, get("/product/sales?period=day&from=2000-01-01T00:00:00.000Z")
+                .header(HttpHeaders.AUTHORIZATION, auth));
+        MvcResult forbidden = performAsync(mockMvc, get("/product/sales").header(HttpHeaders.AUTHORIZATION, buyerAuth));
+
+        //Then, both reports have one rollup with the units and the revenue of the two purchases, buyers have no report.
+        for (MvcResult result : Arrays.asList(hourly, daily)) {
+            JsonNode rollups = mapper.readTree(result.getResponse().getContentAsString());
+            assertThat(rollups.size()).isEqualTo(1);
+            assertThat(rollups.get(0).get("productId").asText()).isEqualTo(id);
+            assertThat(rollups.get(0).get("units").asLong()).isEqualTo(2);
+            assertThat(rollups.get(0).get("revenue").asLong()).isEqualTo(20);
+        }
+        assertThat(forbidden.getResponse().getStatus()).isEqualTo(403);
+    }
+
+    @Test
+    void testPurchaseRestockAndDeletionAreDeliveredFromTheOutbox() throws Exception {
+        //Given, a product that was bought, restocked and deleted.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        UserTestUtils.createCustomizedUser(mockMvc, "buyerUser", "password", ERole.BUYER);
+        User user = customUserDetailService.findByUsername("buyerUser");
+        user.setDeposit(10);
+        customUserDetailService.saveUser(user);
+        String id = productService.listAll().get(0).getId();
+        String buyerAuth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, buyerAuth));
+        Map<String, String> body = new HashMap<>();
+        body.put(ProductConstants.ID, id);
+        body.put(ProductConstants.AMOUNT_AVAILLABLE, "15");
+        mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+        mockMvc.perform(delete("/product/" + id).header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+
+        //When, the publisher runs until the events settled, they are read once the second they were written is over.
+        List<JsonNode> events = new ArrayList<>();
+        for (int attempt = 0; attempt < 50 && events.size() < 3; attempt++) {
+            Thread.sleep(100);
+            outboxPublisher.publish();
+            if (!Files.exists(Paths.get(outboxFile))) {
+                continue;
+            }
+            events = Files.readAllLines(Paths.get(outboxFile)).stream()
+                    .map(line -> {
+                        try {
+                            return mapper.readTree(line);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    })
+                    .filter(event -> id.equals(event.get("productId").asText()))
+                    .collect(Collectors.toList());
+        }
+
+        //Then, the purchase, the restock of the 6 items and the deletion are delivered in order.
+        assertThat(events).hasSize(3);
+        assertThat(events.get(0).get("type").asText()).isEqualTo("PURCHASE");
+        assertThat(events.get(0).get("username").asText()).isEqualTo("buyerUser");
+        assertThat(events.get(1).get("type").asText()).isEqualTo("RESTOCK");
+        assertThat(events.get(1).get("quantity").asInt()).isEqualTo(6);
+        assertThat(events.get(2).get("type").asText()).isEqualTo("DELETE");
+    }
+
+    @Test
+    void testProductChangesAreStreamedAndResumedFromLastEventId() throws Exception {
+        //Given, a product and a display subscribed to its changes.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        String id = productService.listAll().get(0).getId();
+        MvcResult stream = mockMvc.perform(get("/product/stream?productId=" + id)).andReturn();
+
+        //When, the product is restocked twice and the display reconnects with the id of the first change.
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        for (int amount = 11; amount <= 12; amount++) {
+            Map<String, String> body = new HashMap<>();
+            body.put(ProductConstants.ID, id);
+            body.put(ProductConstants.AMOUNT_AVAILLABLE, String.valueOf(amount));
+            mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                    .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+        }
+        String events = awaitContent(stream, "\"amountAvaillable\":12");
+        String firstId = events.substring(events.indexOf("id:") + 3, events.indexOf('\n', events.indexOf("id:")));
+        MvcResult resumed = mockMvc.perform(get("/product/stream?productId=" + id).header("Last-Event-ID", firstId)).andReturn();
+
+        //Then, both changes are pushed in order and only the second one is sent again on resume.
+        assertThat(events.indexOf("\"amountAvaillable\":11")).isLessThan(events.indexOf("\"amountAvaillable\":12"));
+        assertThat(events).contains("event:product");
+        String replayed = awaitContent(resumed, "\"amountAvaillable\":12");
+        assertThat(replayed).doesNotContain("\"amountAvaillable\":11");
+    }
+
+    @Test
+    void testDisplayResumingFromAnEventNotKeptIsToldToReload() throws Exception {
+        //Given, a product that was restocked once.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        String id = productService.listAll().get(0).getId();
+        Map<String, String> body = new HashMap<>();
+        body.put(ProductConstants.ID, id);
+        body.put(ProductConstants.AMOUNT_AVAILLABLE, "11");
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+
+        //When, a display reconnects with the id of an event from before the application started.
+        MvcResult resumed = mockMvc.perform(get("/product/stream?productId=" + id).header("Last-Event-ID", "1")).andReturn();
+
+        //Then, the display is told to reload instead of being sent the changes.
+        String replayed = awaitContent(resumed, "event:reload");
+        assertThat(replayed).contains("event:reload");
+        assertThat(replayed).doesNotContain("event:product");
+    }
+
+    @Test
+    void testSellerStockSupersedesClaimedAllotments() throws Exception {
+        //Given, a product with 5 of its items claimed by another node.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        String id = productService.listAll().get(0).getId();
+        String claimId = new ObjectId().toHexString();
+        customProductRepository.claimStock(id, 5, claimId, null).block();
+
+        //When, the seller sets the stock and the other node gives its unsold items back afterwards.
+        Map<String, String> body = new HashMap<>();
+        body.put(ProductConstants.ID, id);
+        body.put(ProductConstants.AMOUNT_AVAILLABLE, "8");
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        MvcResult result = mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+        Product returned = customProductRepository.returnStock(id, claimId, 5).block();
+
+        //Then, the claim is superseded and the stock stays as set by the seller.
+        assertThat(result.getResponse().getStatus()).isEqualTo(200);
+        assertThat(returned).isNull();
+        assertThat(productService.listAll().get(0).getAmountAvaillable()).isEqualTo(8);
+    }
+
+    @Test
+    void testAllotmentIsNotSoldOnceTheSellerSetsTheStockOnAnotherNode() throws Exception {
+        //Given, a hot product whose purchases are served from an allotment of 5 items claimed by this node.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        String id = productService.listAll().get(0).getId();
+        UserTestUtils.createCustomizedUser(mockMvc, "buyer", "password", ERole.BUYER);
+        ReflectionTestUtils.setField(stockReservationService, "hotThreshold", 1);
+        ReflectionTestUtils.setField(stockReservationService, "allotmentSize", 5);
+        try {
+            assertThat(buy(id, "buyer")).isTrue();
+            stockReservationService.sweep();
+            assertThat(buy(id, "buyer")).isTrue();
+            assertThat(productService.listAll().get(0).getAmountAvaillable()).isEqualTo(4);
+
+            //When, the seller sets the stock to 2 on another node while this node still holds 4 items, and buyers keep buying.
+            Product product = productService.listAll().get(0);
+            customProductRepository.updateVersioned(id, product.getVersion(),
+                    new Update().set(ProductConstants.AMOUNT_AVAILLABLE, 2).unset(ProductConstants.ALLOTMENTS)).block();
+            int sold = 0;
+            for (int i = 0; i < 5; i++) {
+                sold += buy(id, "buyer") ? 1 : 0;
+            }
+
+            //Then, only the 2 items set by the seller are sold, the items of the superseded allotment are not.
+            assertThat(sold).isEqualTo(2);
+            assertThat(productService.listAll().get(0).getAmountAvaillable()).isEqualTo(0);
+        } finally {
+            ReflectionTestUtils.setField(stockReservationService, "hotThreshold", hotThreshold);
+            ReflectionTestUtils.setField(stockReservationService, "allotmentSize", allotmentSize);
+            stockReservationService.retireAll();
+        }
     }
 
     @Test
@@ -168,7 +395,7 @@ public class ProductControllerTest {
         //When, a request to buy the product is sent.
         String id = productService.listAll().get(0).getId();
         String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
-        MvcResult result = mockMvc.perform(post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the purchase operation is not completed and the response clarifies that the product is out of stock.
         assertThat(result.getResponse().getContentAsString()).contains("is out of stock");
@@ -184,7 +411,7 @@ public class ProductControllerTest {
 
         //When, sending a request to buy the product.
         String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
-        MvcResult result = mockMvc.perform(post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the purchase is not complete and the product stock is not reduced. The response clarifies the reason.
         assertThat(result.getResponse().getContentAsString()).isEqualTo("User does not have suffecient funds");
@@ -206,13 +433,277 @@ public class ProductControllerTest {
         //When, a request to buy the product is sent.
         String id = productService.listAll().get(0).getId();
         String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
-        MvcResult result = mockMvc.perform(post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the purchase operation is not completed and the response clarifies that the product is not availlable. The stock is not reduced.
         assertThat(result.getResponse().getContentAsString()).contains("No Product " + id + " availlable to Purchase");
         assertThat(productService.findProductById(id).getAmountAvaillable()).isEqualTo(10);
     }
 
+    @Test
+    void testBuyProductWithoutChangeInMachine() throws Exception {
+        //Given, a product is created and in stock, a buyer account with enough deposit and the machine has no coins for change.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        String id = productService.listAll().get(0).getId();
+        UserTestUtils.createCustomizedUser(mockMvc, "buyerUser", "password", ERole.BUYER);
+        User user = customUserDetailService.findByUsername("buyerUser");
+        user.setDeposit(100);
+        customUserDetailService.saveUser(user);
+        fillCoins(0);
+
+        //When, sending a request to buy the product.
+        String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
+        MvcResult result = performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
+
+        //Then, the purchase is not completed, the deposit is kept and the stock is not reduced. The response clarifies the reason.
+        assertThat(result.getResponse().getContentAsString()).isEqualTo("Exact change of 90 can not be made, please use smaller coins");
+        assertThat(customUserDetailService.findByUsername("buyerUser").getDeposit()).isEqualTo(100);
+        assertThat(productService.findProductById(id).getAmountAvaillable()).isEqualTo(10);
+    }
+
+    @Test
+    void testConcurrentBuysDoNotOversell() throws Exception {
+        //Given, a product is created with only 1 item in stock and two buyer accounts with enough deposit.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        Product product = productService.listAll().get(0);
+        product.setAmountAvaillable(1);
+        productService.saveProduct(product);
+        for (String username : Arrays.asList("firstBuyer", "secondBuyer")) {
+            UserTestUtils.createCustomizedUser(mockMvc, username, "password", ERole.BUYER);
+            User user = customUserDetailService.findByUsername(username);
+            user.setDeposit(100);
+            customUserDetailService.saveUser(user);
+        }
+
+        //When, both buyers try to buy the product at the same time.
+        String id = product.getId();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Boolean>> purchases = new ArrayList<>();
+        for (String username : Arrays.asList("firstBuyer", "secondBuyer")) {
+            purchases.add(executor.submit(() -> {
+                try {
+                    productService.buyProduct(id, username);
+                    return true;
+                } catch (InvalidPurchaseException e) {
+                    return false;
+                }
+            }));
+        }
+        int succeeded = 0;
+        for (Future<Boolean> purchase : purchases) {
+            succeeded += purchase.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        //Then, only one purchase is completed, the stock does not go below 0 and only the winner is charged.
+        assertThat(succeeded).isEqualTo(1);
+        assertThat(productService.findProductById(id).getAmountAvaillable()).isEqualTo(0);
+        int remainingDeposits = customUserDetailService.findByUsername("firstBuyer").getDeposit()
+                + customUserDetailService.findByUsername("secondBuyer").getDeposit();
+        assertThat(remainingDeposits).isEqualTo(100);
+    }
+
+    @Test
+    void testCatalogPagesSkipDeletedProducts() throws Exception {
+        //Given, three products are created and the second one is soft-deleted.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        for (String name : Arrays.asList("second", "third")) {
+            ProductPojo productPojo = new ProductPojo();
+            productPojo.setProductName(name);
+            productPojo.setCost(10);
+            productPojo.setAmountAvaillable(10);
+            productService.createProduct(productPojo, "user");
+        }
+        List<Product> products = productService.listAll();
+        products.sort(Comparator.comparing(Product::getId));
+        products.get(1).setDeleted(true);
+        productService.saveProduct(products.get(1));
+
+        //When, reading the catalog one product per page.
+        List<String> listed = new ArrayList<>();
+        String after = null;
+        do {
+            MockHttpServletRequestBuilder request = get("/product/catalog").param("limit", "1");
+            if (after != null) {
+                request.param("after", after);
+            }
+            MvcResult result = performAsync(mockMvc, request);
+            Map<?, ?> page = mapper.readValue(result.getResponse().getContentAsString(), Map.class);
+            for (Object product : (List<?>) page.get(ProductConstants.PRODUCTS)) {
+                listed.add((String) ((Map<?, ?>) product).get(ProductConstants.ID));
+            }
+            after = (String) page.get(ProductConstants.NEXT);
+        } while (after != null);
+
+        //Then, the products that are not deleted are listed once each in the order of their ids.
+        assertThat(listed).containsExactly(products.get(0).getId(), products.get(2).getId());
+    }
+
+    @Test
+    void testMenuIsNotSentAgainWhenUnchanged() throws Exception {
+        //Given, a product is created and the menu was already read once.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        MvcResult first = mockMvc.perform(get("/product/menu")).andReturn();
+        String etag = first.getResponse().getHeader(HttpHeaders.ETAG);
+
+        //When, reading the menu again with the tag of the menu already read.
+        MvcResult second = mockMvc.perform(get("/product/menu").header(HttpHeaders.IF_NONE_MATCH, etag)).andReturn();
+
+        //Then, the first read has the product and the second read is answered as not modified.
+        assertThat(first.getResponse().getStatus()).isEqualTo(200);
+        assertThat(first.getResponse().getContentAsString()).contains("\"productName\":\"product\"");
+        assertThat(etag).isNotBlank();
+        assertThat(second.getResponse().getStatus()).isEqualTo(304);
+    }
+
+    @Test
+    void testSearchProductsByPrefixAndWithTypos() throws Exception {
+        //Given, two products are created.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        ProductPojo productPojo = new ProductPojo();
+        productPojo.setProductName("Chocolate Bar");
+        productPojo.setCost(10);
+        productPojo.setAmountAvaillable(10);
+        productService.createProduct(productPojo, "user");
+
+        //When, searching with the start of a name and with a misspelled name.
+        MvcResult prefix = mockMvc.perform(get("/product/search").param("q", "prod")).andReturn();
+        MvcResult typo = mockMvc.perform(get("/product/search").param("q", "chocolat bra")).andReturn();
+
+        //Then, each search finds the matching product only.
+        Map<?, ?> prefixResult = mapper.readValue(prefix.getResponse().getContentAsString(), Map.class);
+        Map<?, ?> typoResult = mapper.readValue(typo.getResponse().getContentAsString(), Map.class);
+        assertThat((List<?>) prefixResult.get(ProductConstants.PRODUCTS)).hasSize(1);
+        assertThat(prefix.getResponse().getContentAsString()).contains("\"productName\":\"product\"");
+        assertThat((List<?>) typoResult.get(ProductConstants.PRODUCTS)).hasSize(1);
+        assertThat(typo.getResponse().getContentAsString()).contains("\"productName\":\"Chocolate Bar\"");
+    }
+
+    @Test
+    void testBatchCreateAndRestock() throws Exception {
+        //Given, a seller account is created.
+        UserTestUtils.createBaiscUser(mockMvc, ERole.SELLER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+
+        //When, creating a batch of products where the second one has an invalid cost, and then restocking the created
+        //products together with a product that does not exist.
+        List<Map<String, Object>> created = new ArrayList<>();
+        for (int cost : new int[]{10, 12, 15}) {
+            Map<String, Object> product = new HashMap<>();
+            product.put(ProductConstants.PRODUCT_NAME, "product" + cost);
+            product.put(ProductConstants.COST, cost);
+            product.put(ProductConstants.AMOUNT_AVAILLABLE, 1);
+            created.add(product);
+        }
+        MvcResult createResult = mockMvc.perform(post("/product/batch").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(created))).andReturn();
+        List<?> createResults = mapper.readValue(createResult.getResponse().getContentAsString(), List.class);
+        List<Map<String, Object>> restocked = new ArrayList<>();
+        for (String id : Arrays.asList((String) ((Map<?, ?>) createResults.get(0)).get(ProductConstants.ID),
+                (String) ((Map<?, ?>) createResults.get(2)).get(ProductConstants.ID), "000000000000000000000000")) {
+            Map<String, Object> product = new HashMap<>();
+            product.put(ProductConstants.ID, id);
+            product.put(ProductConstants.AMOUNT_AVAILLABLE, 50);
+            restocked.add(product);
+        }
+        MvcResult restockResult = mockMvc.perform(put("/product/batch").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(restocked))).andReturn();
+        List<?> restockResults = mapper.readValue(restockResult.getResponse().getContentAsString(), List.class);
+
+        //Then, only the valid products are created and restocked, and each item reports its own result.
+        assertThat(createResults.stream().<Object>map(result -> ((Map<?, ?>) result).get("success")).collect(Collectors.toList()))
+                .containsExactly(true, false, true);
+        assertThat(((Map<?, ?>) createResults.get(1)).get("message")).isEqualTo("The cost should be multiple of 5");
+        assertThat(restockResults.stream().<Object>map(result -> ((Map<?, ?>) result).get("success")).collect(Collectors.toList()))
+                .containsExactly(true, true, false);
+        assertThat(productService.listAll()).hasSize(2).allMatch(product -> product.getAmountAvaillable() == 50);
+    }
+
+    @Test
+    void testBatchUpdateBasedOnOutdatedVersionIsReportedAsConflict() throws Exception {
+        //Given, two products of the seller, the first one was bought once after the seller read them.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        productService.saveProduct(new Product(null, "other", 10, 10, "user", false, null));
+        List<Product> products = productService.listAll();
+        customProductRepository.decrementStock(products.get(0).getId()).block();
+
+        //When, the seller restocks both in a batch based on the versions read before the purchase.
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        List<Map<String, Object>> restocked = new ArrayList<>();
+        for (Product product : products) {
+            Map<String, Object> body = new HashMap<>();
+            body.put(ProductConstants.ID, product.getId());
+            body.put(ProductConstants.VERSION, product.getVersion());
+            body.put(ProductConstants.AMOUNT_AVAILLABLE, 50);
+            restocked.add(body);
+        }
+        MvcResult result = mockMvc.perform(put("/product/batch").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(restocked))).andReturn();
+        List<?> results = mapper.readValue(result.getResponse().getContentAsString(), List.class);
+
+        //Then, the product changed meanwhile is reported as a conflict and keeps its stock, the other one is restocked.
+        assertThat(results.stream().<Object>map(item -> ((Map<?, ?>) item).get("success")).collect(Collectors.toList()))
+                .containsExactly(false, true);
+        assertThat(((Map<?, ?>) results.get(0)).get("message").toString()).contains("was changed meanwhile");
+        assertThat(productService.findProductById(products.get(0).getId()).getAmountAvaillable()).isEqualTo(9);
+        assertThat(productService.findProductById(products.get(1).getId()).getAmountAvaillable()).isEqualTo(50);
+    }
+
+    @Test
+    void testUpdateBasedOnOutdatedVersionIsRejected() throws Exception {
+        //Given, a product is created and updated once based on its first version.
+        createBasicProduct(mockMvc, ERole.SELLER);
+        Product product = productService.listAll().get(0);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+        Map<String, Object> body = new HashMap<>();
+        body.put(ProductConstants.ID, product.getId());
+        body.put(ProductConstants.VERSION, product.getVersion());
+        body.put(ProductConstants.COST, 20);
+        MvcResult first = mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+
+        //When, sending another update based on the same first version.
+        body.put(ProductConstants.COST, 30);
+        MvcResult second = mockMvc.perform(put("/product").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content(mapper.writeValueAsString(body))).andReturn();
+
+        //Then, only the first update is applied and the second one is rejected as a conflict.
+        assertThat(first.getResponse().getStatus()).isEqualTo(200);
+        assertThat(second.getResponse().getStatus()).isEqualTo(409);
+        assertThat(productService.findProductById(product.getId()).getCost()).isEqualTo(20);
+    }
+
+    /**
+     * Sets the count of every coin in the machine to the passed count.
+     * @param count
+     */
+    /**
+     * Buys the product with exactly its cost as deposit.
+     * @param id
+     * @param username
+     * @return whether the purchase was completed.
+     * @throws Exception
+     */
+    private boolean buy(String id, String username) throws Exception {
+        User user = customUserDetailService.findByUsername(username);
+        user.setDeposit(10);
+        customUserDetailService.saveUser(user);
+        try {
+            productService.buyProduct(id, username);
+            return true;
+        } catch (InvalidPurchaseException e) {
+            return false;
+        }
+    }
+
+    private void fillCoins(int count) {
+        Map<Integer, Integer> coins = new HashMap<>();
+        for (Integer coin : UserContants.DEPOSIT_AMOUNTS) {
+            coins.put(coin, count);
+        }
+        coinInventoryService.fill(coins);
+    }
+
     /**
      * Creates basic product using account wit the passed role. The created product has:
      *  product name: product
@@ -236,4 +727,22 @@ public class ProductControllerTest {
                 .contentType(MediaType.APPLICATION_JSON).content(jsonBody)).andReturn();
     }
 
+    /**
+     * Waits for the response of the stream to contain the expected text.
+     * @param result
+     * @param expected
+     * @return the content of the response, whether it contains the expected text or not after 5 seconds.
+     * @throws Exception
+     */
+    private static String awaitContent(MvcResult result, String expected) throws Exception {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            String content = result.getResponse().getContentAsString();
+            if (content.contains(expected)) {
+                return content;
+            }
+            Thread.sleep(100);
+        }
+        return result.getResponse().getContentAsString();
+    }
+
 }
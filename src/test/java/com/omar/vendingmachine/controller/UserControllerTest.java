@@ -1,28 +1,47 @@
 package com.omar.vendingmachine.controller;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.omar.vendingmachine.constants.PurchaseConstants;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.model.purchase.Purchase;
 import com.omar.vendingmachine.model.user.ERole;
 import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.service.CoinInventoryService;
 import com.omar.vendingmachine.service.CustomUserDetailService;
 import com.omar.vendingmachine.service.ProductService;
+import com.omar.vendingmachine.service.PurchaseHistoryService;
 import com.omar.vendingmachine.service.RoleService;
 import com.omar.vendingmachine.utils.UserTestUtils;
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 
 import static com.omar.vendingmachine.utils.UserTestUtils.createBaiscUser;
+import static com.omar.vendingmachine.utils.MvcTestUtils.performAsync;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 
 @ActiveProfiles("test")
@@ -38,11 +57,19 @@ public class UserControllerTest {
     private CustomUserDetailService customUserDetailService;
     @Autowired
     private RoleService roleService;
+    @Autowired
+    private PurchaseHistoryService purchaseHistoryService;
+    @Autowired
+    private CoinInventoryService coinInventoryService;
+    @Autowired
+    private ReactiveMongoTemplate reactiveMongoTemplate;
+    private final ObjectMapper mapper = new ObjectMapper();
 
     @BeforeEach
     void initEach() {
         productService.deleteAll();
         customUserDetailService.deleteAll();
+        purchaseHistoryService.deleteAll();
         UserTestUtils.createRoles(roleService);
     }
 
@@ -53,8 +80,8 @@ public class UserControllerTest {
 
         //When, sending a request to deposit a defined (valid) amount to the account.
         String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
-        MvcResult result = mockMvc.perform(put("/user/deposit/5")
-                .header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, put("/user/deposit/5")
+                .header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the amount is deposited and the deposit amount is increased.
         assertThat(result.getResponse().getStatus()).isEqualTo(200);
@@ -69,8 +96,8 @@ public class UserControllerTest {
 
         //When, sending a request to deposit a defined (valid) amount to the seller account.
         String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
-        MvcResult result = mockMvc.perform(put("/user/deposit/5")
-                .header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, put("/user/deposit/5")
+                .header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the amount is not deposited and the response is Forbidden
         assertThat(result.getResponse().getStatus()).isEqualTo(403);
@@ -84,8 +111,8 @@ public class UserControllerTest {
 
         //When, sending a request to deposit amount that is not defined (not among the valid amounts).
         String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
-        MvcResult result = mockMvc.perform(put("/user/deposit/7")
-                .header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, put("/user/deposit/7")
+                .header(HttpHeaders.AUTHORIZATION, auth));
 
         //Then, the deposit is not completed (the deposit value is not changed) and the response is Bad Request.
         assertThat(result.getResponse().getStatus()).isEqualTo(400);
@@ -95,21 +122,106 @@ public class UserControllerTest {
 
     @Test
     void testResetDepoist() throws Exception {
-        //Given, a buyer account is already created with 100 deposit.
+        //Given, a buyer account is already created with 100 deposit, and the machine holds 10 of each coin.
         createBaiscUser(mockMvc, ERole.BUYER);
         User user = customUserDetailService.listAll().get(0);
         user.setDeposit(100);
         customUserDetailService.saveUser(user);
+        Map<Integer, Integer> coins = new HashMap<>();
+        for (Integer coin : UserContants.DEPOSIT_AMOUNTS) {
+            coins.put(coin, 10);
+        }
+        coinInventoryService.fill(coins);
 
         //When, sending a request to resst the deposit.
         String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
-        MvcResult result = mockMvc.perform(put("/user/deposit/reset")
-                .header(HttpHeaders.AUTHORIZATION, auth)).andReturn();
+        MvcResult result = performAsync(mockMvc, put("/user/deposit/reset")
+                .header(HttpHeaders.AUTHORIZATION, auth));
 
-        //The deposit is reset to 0 and the response is Ok.
+        //The deposit is reset to 0, given back in coins taken out of the machine, and the response is Ok.
         assertThat(result.getResponse().getStatus()).isEqualTo(200);
         List<User> users = customUserDetailService.listAll();
         assertThat(users.get(0).getDeposit()).isEqualTo(0);
+        int left = 0;
+        for (Map.Entry<Integer, Integer> coin : coinInventoryService.getCoins().entrySet()) {
+            left += coin.getKey() * coin.getValue();
+        }
+        int filled = 0;
+        for (Map.Entry<Integer, Integer> coin : coins.entrySet()) {
+            filled += coin.getKey() * coin.getValue();
+        }
+        assertThat(left).isEqualTo(filled - 100);
+
+    }
+
+    @Test
+    void testDepositCoinsAtOnce() throws Exception {
+        //Given, a buyer account is already created.
+        createBaiscUser(mockMvc, ERole.BUYER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("user:password".getBytes());
+
+        //When, sending a burst of valid coins and then a burst with one coin that is not defined.
+        MvcResult valid = performAsync(mockMvc, put("/user/deposit").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content("[5,5,20,100]"));
+        MvcResult invalid = performAsync(mockMvc, put("/user/deposit").header(HttpHeaders.AUTHORIZATION, auth)
+                .contentType(MediaType.APPLICATION_JSON).content("[5,7]"));
+
+        //Then, all the valid coins are deposited at once and none of the coins of the invalid burst is deposited.
+        assertThat(valid.getResponse().getStatus()).isEqualTo(200);
+        assertThat(valid.getResponse().getContentAsString()).isEqualTo("{\"deposit\":130}");
+        assertThat(invalid.getResponse().getStatus()).isEqualTo(400);
+        assertThat(customUserDetailService.listAll().get(0).getDeposit()).isEqualTo(130);
+    }
 
+    @Test
+    void testListPurchasesByPages() throws Exception {
+        //Given, a buyer account that bought the same product three times.
+        String id = productService.saveProduct(new Product(null, "product", 10, 10, "seller", false, null)).getId();
+        UserTestUtils.createCustomizedUser(mockMvc, "buyerUser", "password", ERole.BUYER);
+        String auth = "Basic " + Base64.getEncoder().encodeToString("buyerUser:password".getBytes());
+        for (int i = 0; i < 3; i++) {
+            performAsync(mockMvc, put("/user/deposit/10").header(HttpHeaders.AUTHORIZATION, auth));
+            performAsync(mockMvc, post("/product/buy/" + id).header(HttpHeaders.AUTHORIZATION, auth));
+        }
+        purchaseHistoryService.flush();
+
+        //When, listing the purchases two at a time.
+        MvcResult first = performAsync(mockMvc, get("/user/purchases?limit=2").header(HttpHeaders.AUTHORIZATION, auth));
+        JsonNode firstPage = mapper.readTree(first.getResponse().getContentAsString());
+        MvcResult second = performAsync(mockMvc, get("/user/purchases?limit=2&before=" + firstPage.get("next").asText())
+                .header(HttpHeaders.AUTHORIZATION, auth));
+
+        //Then, the purchases are listed with their product and cost and the last page has no next page.
+        JsonNode secondPage = mapper.readTree(second.getResponse().getContentAsString());
+        assertThat(firstPage.get("purchases").size()).isEqualTo(2);
+        assertThat(firstPage.get("next").isNull()).isFalse();
+        assertThat(secondPage.get("purchases").size()).isEqualTo(1);
+        assertThat(secondPage.get("next").isNull()).isTrue();
+        assertThat(secondPage.get("purchases").get(0).get("productId").asText()).isEqualTo(id);
+        assertThat(secondPage.get("purchases").get(0).get("cost").asInt()).isEqualTo(10);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRetriedPurchaseBatchKeepsEachPurchaseOnce() throws Exception {
+        //Given, a batch of three purchases whose first write failed after writing the first purchase.
+        purchaseHistoryService.deleteAll();
+        Product product = new Product(new ObjectId().toHexString(), "product", 10, 10, "seller", false, null);
+        for (int i = 0; i < 3; i++) {
+            purchaseHistoryService.record("buyerUser", product, null);
+        }
+        List<Purchase> batch = new ArrayList<>();
+        ((BlockingQueue<Purchase>) ReflectionTestUtils.getField(purchaseHistoryService, "queue")).drainTo(batch);
+        reactiveMongoTemplate.insert(batch.get(0)).block();
+        ReflectionTestUtils.setField(purchaseHistoryService, "retry", batch);
+
+        //When, the next flush retries the batch.
+        purchaseHistoryService.flush();
+
+        //Then, every purchase of the batch is in the history once.
+        List<Purchase> purchases = (List<Purchase>) purchaseHistoryService.purchases("buyerUser", null, 10).block()
+                .get(PurchaseConstants.PURCHASES);
+        assertThat(purchases).extracting(Purchase::getId)
+                .containsExactlyInAnyOrder(batch.get(0).getId(), batch.get(1).getId(), batch.get(2).getId());
     }
 }
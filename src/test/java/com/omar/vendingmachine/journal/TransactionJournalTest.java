@@ -0,0 +1,91 @@
+package com.omar.vendingmachine.journal;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TransactionJournalTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void testReplayRebuildsBalancesAndStockAcrossSegments() throws IOException {
+        //Given, an open journal with small segments.
+        TransactionJournal journal = journal();
+        journal.open();
+
+        //When, journaling 100 deposits and purchases of one buyer, and a deposit and a reset of another user.
+        for (int i = 0; i < 100; i++) {
+            journal.deposit("buyer", 50);
+            journal.purchase("buyer", "product", 30, null);
+        }
+        journal.deposit("buyer", 20);
+        journal.deposit("other", 100);
+        journal.reset("other");
+        journal.close();
+
+        //Then, the entries span several segments and the replay rebuilds the balances and the stock change.
+        assertThat(TransactionJournal.segments(dir)).hasSizeGreaterThan(1);
+        JournalReplay replay = JournalReplay.replay(dir);
+        assertThat(replay.getEntries()).isEqualTo(203);
+        assertThat(replay.getBalances()).containsEntry("buyer", 20).containsEntry("other", 0);
+        assertThat(replay.getStockChanges()).containsEntry("product", -100);
+    }
+
+    @Test
+    void testReplayRebuildsStocksAndFindsThePurchasesInFlight() throws IOException {
+        //Given, an open journal.
+        TransactionJournal journal = journal();
+        journal.open();
+
+        //When, a product is stocked, bought, bought with a failed payment, and taken by a purchase that never completed.
+        journal.stock("seller", "product", 10);
+        journal.take("buyer", "product");
+        journal.purchase("buyer", "product", 10, null);
+        journal.take("buyer", "product");
+        journal.putBack("buyer", "product");
+        journal.take("other", "product");
+        journal.stock("seller", "deleted", 5);
+        journal.delete("seller", "deleted");
+        journal.close();
+
+        //Then, the stock is rebuilt from the stock set by the seller, and only the take neither paid nor put back is in flight.
+        JournalReplay replay = JournalReplay.replay(dir);
+        assertThat(replay.getStocks()).containsOnlyKeys("product").containsEntry("product", 8);
+        assertThat(replay.getStockChanges()).isEmpty();
+        assertThat(replay.getDeleted()).containsExactly("deleted");
+        assertThat(replay.getInFlight()).containsOnlyKeys("other/product").containsEntry("other/product", 1);
+    }
+
+    @Test
+    void testJournalContinuesAfterTheLastEntryOnRestart() throws IOException {
+        //Given, a journal with a deposit that was closed.
+        TransactionJournal journal = journal();
+        journal.open();
+        journal.deposit("buyer", 10);
+        journal.close();
+
+        //When, the journal is opened again and another deposit is journaled.
+        TransactionJournal restarted = journal();
+        restarted.open();
+        restarted.deposit("buyer", 5);
+        restarted.close();
+
+        //Then, the replay counts both deposits.
+        assertThat(JournalReplay.replay(dir).getBalances()).containsEntry("buyer", 15);
+    }
+
+    private TransactionJournal journal() {
+        TransactionJournal journal = new TransactionJournal();
+        ReflectionTestUtils.setField(journal, "enabled", true);
+        ReflectionTestUtils.setField(journal, "dir", dir.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", 4096);
+        ReflectionTestUtils.setField(journal, "flushInterval", 10L);
+        return journal;
+    }
+}
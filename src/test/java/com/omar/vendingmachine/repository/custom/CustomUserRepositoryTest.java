@@ -0,0 +1,64 @@
+package com.omar.vendingmachine.repository.custom;
+
+import com.mongodb.DBRef;
+import com.omar.vendingmachine.constants.UserContants;
+import com.omar.vendingmachine.model.user.ERole;
+import com.omar.vendingmachine.model.user.Role;
+import com.omar.vendingmachine.model.user.User;
+import com.omar.vendingmachine.service.CustomUserDetailService;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class CustomUserRepositoryTest {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private CustomUserRepository customUserRepository;
+    @Autowired
+    private CustomUserDetailService customUserDetailService;
+
+    @BeforeEach
+    void initEach() {
+        customUserDetailService.deleteAll();
+    }
+
+    @Test
+    void testEmbedRolesReplacesReferencesAndDropsDanglingOnes() {
+        //Given, a user saved before the roles were embedded, referencing an existing role and a role that was deleted.
+        Role buyer = new Role(new ObjectId().toHexString(), ERole.BUYER.name());
+        Map<String, Role> rolesById = new HashMap<>();
+        rolesById.put(buyer.getId(), buyer);
+        Document user = new Document(UserContants.USERNAME, "legacyUser")
+                .append(UserContants.DEPOSIT, 0)
+                .append(UserContants.ROLES, Arrays.asList(new DBRef("role", new ObjectId(buyer.getId())),
+                        new DBRef("role", new ObjectId())));
+        mongoTemplate.insert(user, mongoTemplate.getCollectionName(User.class));
+
+        //When, embedding the roles, then again once the user is migrated.
+        Long migrated = customUserRepository.embedRoles(rolesById).block();
+        Long migratedAgain = customUserRepository.embedRoles(rolesById).block();
+
+        //Then, the user holds the existing role itself, the dangling reference is dropped and no user is migrated twice.
+        assertThat(migrated).isEqualTo(1);
+        assertThat(migratedAgain).isEqualTo(0);
+        User migratedUser = customUserDetailService.findByUsername("legacyUser");
+        assertThat(migratedUser.getRoles()).extracting(Role::getName).containsExactly(ERole.BUYER.name());
+    }
+}
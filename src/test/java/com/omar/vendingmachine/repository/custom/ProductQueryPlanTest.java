@@ -0,0 +1,81 @@
+package com.omar.vendingmachine.repository.custom;
+
+import com.omar.vendingmachine.model.product.Product;
+import com.omar.vendingmachine.pojo.ProductFilter;
+import com.omar.vendingmachine.service.ProductService;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@ActiveProfiles("test")
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class ProductQueryPlanTest {
+    @Autowired
+    private MongoTemplate mongoTemplate;
+    @Autowired
+    private ProductService productService;
+
+    @BeforeEach
+    void initEach() {
+        productService.deleteAll();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            products.add(new Product(null, "product" + i, i % 3, 5 * (1 + i % 20), "seller" + i % 4, i % 10 == 0, null));
+        }
+        mongoTemplate.insertAll(products);
+    }
+
+    @Test
+    void testCostAndStockFilterUsesIndex() {
+        //Given, a filter of the products up to 50 that are in stock.
+        ProductFilter filter = new ProductFilter();
+        filter.setMaxCost(50);
+        filter.setInStock(true);
+
+        //When, explaining the query of the filter.
+        String winningPlan = winningPlan(CustomProductRepositoryImpl.filterQuery(filter));
+
+        //Then, the products are read through an index and not by scanning the collection.
+        assertThat(winningPlan).contains("IXSCAN").doesNotContain("COLLSCAN");
+    }
+
+    @Test
+    void testSellerFilterUsesIndex() {
+        //Given, a filter of the products of one seller between 10 and 50.
+        ProductFilter filter = new ProductFilter();
+        filter.setSellerUserName("seller1");
+        filter.setMinCost(10);
+        filter.setMaxCost(50);
+
+        //When, explaining the query of the filter.
+        String winningPlan = winningPlan(CustomProductRepositoryImpl.filterQuery(filter));
+
+        //Then, the seller index is used and the products are not sorted in memory.
+        assertThat(winningPlan).contains("seller_deleted_cost_stock").doesNotContain("COLLSCAN").doesNotContain("\"SORT\"");
+    }
+
+    private String winningPlan(Query query) {
+        QueryMapper mapper = new QueryMapper(mongoTemplate.getConverter());
+        MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(Product.class);
+        Document explain = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Product.class))
+                .find(mapper.getMappedObject(query.getQueryObject(), entity))
+                .sort(mapper.getMappedSort(query.getSortObject(), entity))
+                .explain();
+        return explain.get("queryPlanner", Document.class).get("winningPlan", Document.class).toJson();
+    }
+}
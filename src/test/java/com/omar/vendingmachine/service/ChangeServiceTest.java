@@ -0,0 +1,71 @@
+package com.omar.vendingmachine.service;
+
+import com.omar.vendingmachine.pojo.Change;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+public class ChangeServiceTest {
+
+    @Test
+    void testChangeOfNonCanonicalCoinsHasTheLeastCoins() {
+        //Given, coins of 1, 3 and 4, where taking the largest coin first returns 6 as 4 + 1 + 1.
+        ChangeService changeService = changeService(10000, 1, 3, 4);
+
+        //When, calculating the change of 6.
+        Change change = changeService.getChange(6);
+
+        //Then, the change is 3 + 3.
+        assertThat(coins(change)).containsOnly(entry(3, 2));
+    }
+
+    @Test
+    void testChangeOfAmountsBeyondTheTableHasTheLeastCoins() {
+        //Given, coins of 1, 15 and 25 with a configured table smaller than the amounts made of the smaller coins.
+        ChangeService changeService = changeService(10, 1, 15, 25);
+
+        //When, calculating the change of 1030.
+        Change change = changeService.getChange(1030);
+
+        //Then, the change is 40 coins of 25 and 2 of 15, not 41 coins of 25 and 5 of 1.
+        assertThat(change.getAmount()).isEqualTo(1030);
+        assertThat(coins(change)).containsOnly(entry(25, 40), entry(15, 2));
+    }
+
+    @Test
+    void testAmountThatCanNotBeMadeOfTheCoinsHasNoChange() {
+        //Given, coins of 5 and 10.
+        ChangeService changeService = changeService(100, 5, 10);
+
+        //When, calculating the change of 7 and of an amount beyond the table.
+        Change small = changeService.getChange(7);
+        Change large = changeService.getChange(1003);
+
+        //Then, neither can be made.
+        assertThat(small).isNull();
+        assertThat(large).isNull();
+    }
+
+    private static ChangeService changeService(int tableSize, Integer... coins) {
+        ChangeService changeService = new ChangeService();
+        ReflectionTestUtils.setField(changeService, "tableSize", tableSize);
+        changeService.init(Arrays.asList(coins));
+        return changeService;
+    }
+
+    private static Map<Integer, Integer> coins(Change change) {
+        Map<Integer, Integer> coins = new HashMap<>();
+        for (int i = 0; i < change.size(); i++) {
+            if (change.getCount(i) > 0) {
+                coins.put(change.getDenomination(i), change.getCount(i));
+            }
+        }
+        return coins;
+    }
+}
@@ -0,0 +1,26 @@
+package com.omar.vendingmachine.utils;
+
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+
+public class MvcTestUtils {
+
+    /**
+     * Performs the request and, in case it is handled asynchronously (the handler returns Mono or Flux), waits for the result
+     * and dispatches it, so the returned result holds the final response.
+     * @param mockMvc
+     * @param request
+     * @return
+     * @throws Exception
+     */
+    public static MvcResult performAsync(MockMvc mockMvc, RequestBuilder request) throws Exception {
+        MvcResult result = mockMvc.perform(request).andReturn();
+        if (result.getRequest().isAsyncStarted()) {
+            return mockMvc.perform(asyncDispatch(result)).andReturn();
+        }
+        return result;
+    }
+}